@@ -0,0 +1,284 @@
+import bench.Stages;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * The default-package side of the JMH benchmarks: sets up each stage on the model's classes and returns the
+ * work for bench.SimilarityBenchmark and bench.TokenizerBenchmark to time. See bench.Stages for what each
+ * stage does.
+ */
+public class BenchmarkStages implements Stages {
+    protected static final int STOP_WORDS = 20; // number of most frequent words in the stop list
+
+    protected final Path dir; // where the corpora are written
+    protected final String stopListFile;
+
+    public BenchmarkStages() throws IOException {
+        dir = Files.createTempDirectory("similarity-bench");
+        stopListFile = dir.resolve("stoplist").toString();
+        new ZipfCorpus(ZipfCorpus.DEFAULT_VOCABULARY_SIZE).writeStopList(stopListFile, STOP_WORDS);
+    }
+
+
+    /**
+
+     Writes a corpus with the default vocabulary and seed, or reuses it if it was already written.
+     @param sentences the number of sentences
+     @return the path of the sentences file
+     */
+    protected String corpus(int sentences) throws IOException {
+        Path file = dir.resolve("sentences-" + sentences);
+        if (!Files.exists(file)) {
+            new ZipfCorpus(ZipfCorpus.DEFAULT_VOCABULARY_SIZE).write(file.toString(), sentences);
+        }
+        return file.toString();
+    }
+
+    /**
+     * @return a model of a corpus of the given number of sentences
+     */
+    protected Similarity model(int sentences) throws IOException {
+        return Similarity.fromCorpus(stopListFile, corpus(sentences), Similarity.DEFAULT_VECTOR_CACHE_BYTES, null);
+    }
+
+    @Override
+    public Work ingest(int sentences) throws IOException {
+        String corpus = corpus(sentences);
+        return blackhole -> blackhole.consume(
+                Similarity.fromCorpus(stopListFile, corpus, Similarity.DEFAULT_VECTOR_CACHE_BYTES, null));
+    }
+
+    @Override
+    public Work vectors(int sentences) throws IOException {
+        Similarity model = model(sentences);
+        int words = model.snapshot.vocabulary.size();
+        return blackhole -> {
+            for (int id = 0; id < words; id++) {
+                SparseVector vec = model.getOccVec(id);
+                model.convertToIDF(vec);
+                model.normVec(vec);
+                blackhole.consume(vec);
+            }
+        };
+    }
+
+    @Override
+    public Work distance(int sentences, String function, int words) throws IOException {
+        Similarity model = model(sentences);
+        SparseVector[] vectors = normalizedVectors(model, Math.min(words, model.snapshot.vocabulary.size()));
+        SparseVector target = vectors[0];
+        switch (function) {
+            case "getL1Distance":
+                return blackhole -> {
+                    for (SparseVector vec : vectors) {
+                        blackhole.consume(model.getL1Distance(target, vec));
+                    }
+                };
+            case "getEuclideanDistance":
+                return blackhole -> {
+                    for (SparseVector vec : vectors) {
+                        blackhole.consume(model.getEuclideanDistance(target, vec));
+                    }
+                };
+            case "getCosineDistance":
+                return blackhole -> {
+                    for (SparseVector vec : vectors) {
+                        blackhole.consume(model.getCosineDistance(target, vec));
+                    }
+                };
+            case "cosine":
+                double[] lengths = new double[vectors.length];
+                for (int i = 0; i < vectors.length; i++) {
+                    lengths[i] = SparseVector.l2Length(vectors[i]);
+                }
+                return blackhole -> {
+                    for (int i = 0; i < vectors.length; i++) {
+                        blackhole.consume(SparseVector.cosine(target, lengths[0], vectors[i], lengths[i]));
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("Unknown distance function: " + function);
+        }
+    }
+
+    @Override
+    public Work embeddingDistance(int sentences, String measure, String kernels) throws IOException {
+        Measure m = Measure.valueOf(measure);
+        VectorKernels k;
+        switch (kernels) {
+            case "scalar":
+                k = new VectorKernels();
+                break;
+            case "default":
+                k = VectorKernels.DEFAULT;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown kernels: " + kernels);
+        }
+        ModelSnapshot model = model(sentences).snapshot;
+        EmbeddingTable table = EmbeddingTable.project(model, Weighting.TF, EmbeddingTable.DEFAULT_DIMENSIONS,
+                EmbeddingTable.DEFAULT_SEED, null);
+        int words = model.vocabulary.size();
+        return blackhole -> {
+            for (int id = 0; id < words; id++) {
+                blackhole.consume(k.scoreNormalized(m, table.embeddings, 0, table.embeddings,
+                        id * table.dimensions, table.dimensions));
+            }
+        };
+    }
+
+    @Override
+    public Work ranking(int sentences, String method, int k) throws IOException {
+        Vocabulary vocabulary = model(sentences).snapshot.vocabulary;
+        int words = vocabulary.size();
+
+        // Random scores, with the ties a real query has among rare words
+        Random random = new Random(ZipfCorpus.DEFAULT_SEED);
+        double[] scores = new double[words];
+        for (int i = 0; i < words; i++) {
+            scores[i] = random.nextInt(words / 4 + 1) / (double) words;
+        }
+
+        switch (method) {
+            case "modQuickSort":
+                return blackhole -> {
+                    ArrayList<Double> sims = new ArrayList<>(words);
+                    ArrayList<String> wordList = new ArrayList<>(words);
+                    for (int i = 0; i < words; i++) {
+                        sims.add(scores[i]);
+                        wordList.add(vocabulary.word(i));
+                    }
+                    Similarity.modQuickSort(sims, 0, words - 1, wordList);
+                    blackhole.consume(wordList);
+                };
+            case "TopK":
+                return blackhole -> {
+                    TopK top = new TopK(k, true);
+                    for (int i = 0; i < words; i++) {
+                        top.offer(scores[i], i);
+                    }
+                    int[] ids = new int[k];
+                    top.drainSorted(new double[k], ids);
+                    blackhole.consume(ids);
+                };
+            case "sort":
+                return blackhole -> {
+                    Integer[] ids = new Integer[words];
+                    for (int i = 0; i < words; i++) {
+                        ids[i] = i;
+                    }
+                    Arrays.sort(ids, Comparator.comparingDouble((Integer id) -> -scores[id]).thenComparingInt(id -> id));
+                    blackhole.consume(ids);
+                };
+            default:
+                throw new IllegalArgumentException("Unknown ranking method: " + method);
+        }
+    }
+
+    @Override
+    public Work batch(int sentences, String method, String measure, int targets, int k) throws IOException {
+        Similarity model = model(sentences);
+        // topK would answer every timed invocation from the result cache, which topKBatched does not use
+        model.setResultCacheSize(0);
+        Vocabulary vocabulary = model.snapshot.vocabulary;
+        List<Query> queries = new ArrayList<>(targets);
+        for (int id = 0; id < Math.min(targets, vocabulary.size()); id++) {
+            queries.add(new Query(vocabulary.word(id), Weighting.TFIDF, Measure.valueOf(measure), k));
+        }
+        switch (method) {
+            case "topK":
+                return blackhole -> blackhole.consume(model.topK(queries));
+            case "topKBatched":
+                return blackhole -> blackhole.consume(model.topKBatched(queries));
+            default:
+                throw new IllegalArgumentException("Unknown batch method: " + method);
+        }
+    }
+
+    @Override
+    public Work tokenize(int sentences, String method) throws IOException {
+        Set<String> stopList = new HashSet<>(Files.readAllLines(Path.of(stopListFile)));
+        List<String> lines = Files.readAllLines(Path.of(corpus(sentences)));
+
+        // Both sides must keep the same words for the comparison to mean anything
+        long regexWords = runRegex(lines, stopList);
+        long tokenizerWords = runTokenizer(lines, stopList);
+        if (regexWords != tokenizerWords) {
+            throw new IllegalStateException("Word counts differ: " + regexWords + " vs " + tokenizerWords);
+        }
+        switch (method) {
+            case "regex":
+                return blackhole -> blackhole.consume(runRegex(lines, stopList));
+            case "tokenizer":
+                return blackhole -> blackhole.consume(runTokenizer(lines, stopList));
+            default:
+                throw new IllegalArgumentException("Unknown tokenize method: " + method);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * @return the normalized TF-IDF vectors of the first count word ids
+     */
+    protected static SparseVector[] normalizedVectors(Similarity model, int count) {
+        SparseVector[] vectors = new SparseVector[count];
+        for (int id = 0; id < count; id++) {
+            vectors[id] = model.getOccVec(id);
+            model.convertToIDF(vectors[id]);
+            model.normVec(vectors[id]);
+        }
+        return vectors;
+    }
+
+    /**
+     * The old preprocessing from the Similarity constructor, interning the words it keeps.
+     */
+    protected static long runRegex(List<String> sentences, Set<String> stopList) {
+        Vocabulary vocabulary = new Vocabulary();
+        long kept = 0;
+        for (String st : sentences) {
+            ArrayList<String> currentWords = new ArrayList<>();
+            for (String word : st.toLowerCase().split("\\s+")) {
+                if (stopList.contains(word)) {
+                    continue;
+                }
+                if (word.matches("[a-zA-Z]+")) {
+                    vocabulary.add(word);
+                    if (!currentWords.contains(word)) {
+                        currentWords.add(word);
+                    }
+                    kept++;
+                }
+            }
+        }
+        return kept;
+    }
+
+    protected static long runTokenizer(List<String> sentences, Set<String> stopList) {
+        Vocabulary vocabulary = new Vocabulary();
+        Tokenizer tokenizer = new Tokenizer(stopList);
+        long kept = 0;
+        for (String st : sentences) {
+            kept += tokenizer.tokenize(st, vocabulary);
+        }
+        return kept;
+    }
+}
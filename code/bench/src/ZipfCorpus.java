@@ -0,0 +1,143 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates synthetic corpora whose word frequencies follow Zipf's law, so that benchmarks can be run on
+ * the same data every time and on corpora of any size. The word of rank r (0 for the most frequent)
+ * is drawn with probability proportional to 1 / (r + 1)^exponent, and every word is made up only of
+ * lower case letters so that none of them are dropped by the tokenizer. The same seed and sizes always
+ * give the same corpus.
+ *
+ * Usage: ZipfCorpus <sentences file> <stoplist file> <sentences> [vocabulary size] [seed]
+ */
+public class ZipfCorpus {
+    public static final int DEFAULT_VOCABULARY_SIZE = 50_000;
+    public static final double DEFAULT_EXPONENT = 1.07; // close to what English text shows
+    public static final long DEFAULT_SEED = 159;
+    protected static final int MIN_SENTENCE_LENGTH = 5;
+    protected static final int MAX_SENTENCE_LENGTH = 30;
+
+    protected final String[] words; // the word of each rank
+    protected final double[] cumulative; // cumulative probability of the ranks up to and including each one
+    protected final Random random;
+
+    /**
+     * @param vocabularySize the number of distinct words to draw from
+     * @param exponent the Zipf exponent; larger values make the most frequent words more dominant
+     * @param seed the seed for the random draws
+     * @throws IllegalArgumentException if the vocabulary is empty
+     */
+    public ZipfCorpus(int vocabularySize, double exponent, long seed) {
+        if (vocabularySize < 1) {
+            throw new IllegalArgumentException("The vocabulary must have at least one word");
+        }
+        words = new String[vocabularySize];
+        cumulative = new double[vocabularySize];
+        double total = 0;
+        for (int r = 0; r < vocabularySize; r++) {
+            words[r] = word(r);
+            total += 1.0 / Math.pow(r + 1, exponent);
+            cumulative[r] = total;
+        }
+        for (int r = 0; r < vocabularySize; r++) {
+            cumulative[r] /= total;
+        }
+        random = new Random(seed);
+    }
+
+    public ZipfCorpus(int vocabularySize) {
+        this(vocabularySize, DEFAULT_EXPONENT, DEFAULT_SEED);
+    }
+
+
+    /**
+
+     Draws the rank of the next word.
+     @return a rank from 0 to the vocabulary size - 1
+     */
+    public int nextRank() {
+        int i = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(i >= 0 ? i : -i - 1, words.length - 1);
+    }
+
+
+    /**
+
+     Draws the next sentence: between MIN_SENTENCE_LENGTH and MAX_SENTENCE_LENGTH words separated by spaces,
+     with the first word capitalized.
+     @return the sentence
+     */
+    public String nextSentence() {
+        int length = MIN_SENTENCE_LENGTH + random.nextInt(MAX_SENTENCE_LENGTH - MIN_SENTENCE_LENGTH + 1);
+        StringBuilder sentence = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            String word = words[nextRank()];
+            if (i == 0) {
+                sentence.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+            } else {
+                sentence.append(' ').append(word);
+            }
+        }
+        return sentence.toString();
+    }
+
+
+    /**
+
+     Writes a corpus to a sentences file, one sentence per line.
+     @param sentencesFile the path of the file to write
+     @param sentences the number of sentences to write
+     @throws IOException if the file cannot be written
+     */
+    public void write(String sentencesFile, int sentences) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(Paths.get(sentencesFile), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < sentences; i++) {
+                out.write(nextSentence());
+                out.newLine();
+            }
+        }
+    }
+
+
+    /**
+
+     Writes the most frequent words to a stop list file, one per line.
+     @param stopListFile the path of the file to write
+     @param count the number of words to write
+     @throws IOException if the file cannot be written
+     */
+    public void writeStopList(String stopListFile, int count) throws IOException {
+        Files.write(Paths.get(stopListFile), Arrays.asList(words).subList(0, Math.min(count, words.length)),
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param rank the rank of a word
+     * @return the word of that rank
+     */
+    public static String word(int rank) {
+        // Spell rank + 26 in base 26 so that every word has at least two letters
+        StringBuilder word = new StringBuilder();
+        for (long n = rank + 26L; n > 0; n /= 26) {
+            word.append((char) ('a' + n % 26));
+        }
+        return word.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: ZipfCorpus <sentences file> <stoplist file> <sentences> [vocabulary size] [seed]");
+            System.exit(1);
+        }
+        int vocabularySize = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_VOCABULARY_SIZE;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : DEFAULT_SEED;
+        ZipfCorpus corpus = new ZipfCorpus(vocabularySize, DEFAULT_EXPONENT, seed);
+        corpus.writeStopList(args[1], 20);
+        corpus.write(args[0], Integer.parseInt(args[2]));
+    }
+}
@@ -0,0 +1,161 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks the stages of building a model and answering queries on synthetic Zipfian corpora:
+ *
+ *     ingest              building a model from corpora of increasing size
+ *     vectors             getOccVec, convertToIDF and normVec for every word
+ *     distances           each of getL1Distance, getEuclideanDistance and getCosineDistance against one
+ *                         target, and the cosine with the vectors' lengths computed once
+ *     embeddingDistances  the scalar and the default VectorKernels on every word's embedding
+ *     ranking             modQuickSort against the TopK heap and a sort of every word id
+ *     batch               topK against topKBatched for a batch of target words under each measure
+ *
+ * Each score is the time of one pass over all the words, or of the whole batch. The stages are run through
+ * Stages, and the query stages share a model of MODEL_SENTENCES sentences.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimilarityBenchmark {
+    public static final int MODEL_SENTENCES = 50_000; // size of the corpus for the query stages
+    public static final int DISTANCE_WORDS = 5_000; // number of words scored against the target
+    public static final int K = 10;
+    public static final int BATCH_TARGETS = 100; // number of target words in the batch stage
+
+    /**
+     * Loads the stages and prepares one of them once per fork.
+     */
+    @State(Scope.Benchmark)
+    public abstract static class Stage {
+        protected Stages stages;
+        protected Stages.Work work;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            stages = Stages.load();
+            work = prepare(stages);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            stages.close();
+        }
+
+        protected abstract Stages.Work prepare(Stages stages) throws IOException;
+    }
+
+    public static class Ingest extends Stage {
+        @Param({"10000", "50000", "200000"})
+        public int sentences;
+
+        @Override
+        protected Stages.Work prepare(Stages stages) throws IOException {
+            return stages.ingest(sentences);
+        }
+    }
+
+    public static class Vectors extends Stage {
+        @Override
+        protected Stages.Work prepare(Stages stages) throws IOException {
+            return stages.vectors(MODEL_SENTENCES);
+        }
+    }
+
+    public static class Distances extends Stage {
+        @Param({"getL1Distance", "getEuclideanDistance", "getCosineDistance", "cosine"})
+        public String function;
+
+        @Override
+        protected Stages.Work prepare(Stages stages) throws IOException {
+            return stages.distance(MODEL_SENTENCES, function, DISTANCE_WORDS);
+        }
+    }
+
+    public static class EmbeddingDistances extends Stage {
+        @Param({"L1", "EUCLIDEAN", "COSINE"})
+        public String measure;
+
+        @Param({"scalar", "default"})
+        public String kernels;
+
+        @Override
+        protected Stages.Work prepare(Stages stages) throws IOException {
+            return stages.embeddingDistance(MODEL_SENTENCES, measure, kernels);
+        }
+    }
+
+    public static class Ranking extends Stage {
+        @Param({"modQuickSort", "TopK", "sort"})
+        public String method;
+
+        @Override
+        protected Stages.Work prepare(Stages stages) throws IOException {
+            return stages.ranking(MODEL_SENTENCES, method, K);
+        }
+    }
+
+    public static class Batch extends Stage {
+        @Param({"topK", "topKBatched"})
+        public String method;
+
+        @Param({"L1", "EUCLIDEAN", "COSINE"})
+        public String measure;
+
+        @Override
+        protected Stages.Work prepare(Stages stages) throws IOException {
+            return stages.batch(MODEL_SENTENCES, method, measure, BATCH_TARGETS, K);
+        }
+    }
+
+    @Benchmark
+    public void ingest(Ingest stage, Blackhole blackhole) throws Exception {
+        stage.work.run(blackhole);
+    }
+
+    @Benchmark
+    public void vectors(Vectors stage, Blackhole blackhole) throws Exception {
+        stage.work.run(blackhole);
+    }
+
+    @Benchmark
+    public void distances(Distances stage, Blackhole blackhole) throws Exception {
+        stage.work.run(blackhole);
+    }
+
+    // The default kernels are only vectorized when the JVM can see the Vector API module
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+    public void embeddingDistances(EmbeddingDistances stage, Blackhole blackhole) throws Exception {
+        stage.work.run(blackhole);
+    }
+
+    @Benchmark
+    public void ranking(Ranking stage, Blackhole blackhole) throws Exception {
+        stage.work.run(blackhole);
+    }
+
+    @Benchmark
+    public void batch(Batch stage, Blackhole blackhole) throws Exception {
+        stage.work.run(blackhole);
+    }
+}
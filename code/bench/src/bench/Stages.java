@@ -0,0 +1,102 @@
+package bench;
+
+import java.io.IOException;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The stages of building a model and answering queries, as the JMH benchmarks see them. JMH only runs
+ * benchmarks that are in a named package, and code in a named package cannot refer to the model's classes
+ * in the default package, so the stages are implemented by the default-package class IMPLEMENTATION and
+ * loaded by name. Each method does the setup of its stage, such as generating a corpus and building a
+ * model, and returns the work to time.
+ *
+ * Corpora are generated by ZipfCorpus from its default vocabulary and seed, so every run times the same
+ * data. They are written to a temporary directory that close deletes.
+ */
+public interface Stages extends AutoCloseable {
+    String IMPLEMENTATION = "BenchmarkStages";
+
+    /**
+     * @return a new instance of IMPLEMENTATION
+     * @throws IllegalStateException if IMPLEMENTATION is not on the class path
+     */
+    static Stages load() {
+        try {
+            return (Stages) Class.forName(IMPLEMENTATION).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load " + IMPLEMENTATION, e);
+        }
+    }
+
+    /**
+     * @param sentences the number of sentences in the corpus
+     * @return building a model from the corpus, without targets
+     */
+    Work ingest(int sentences) throws IOException;
+
+    /**
+     * @param sentences the number of sentences in the corpus of the model
+     * @return getOccVec, convertToIDF and normVec for every word of the model
+     */
+    Work vectors(int sentences) throws IOException;
+
+    /**
+     * @param sentences the number of sentences in the corpus of the model
+     * @param function one of getL1Distance, getEuclideanDistance and getCosineDistance, or cosine for
+     *                 SparseVector.cosine with the vectors' lengths computed beforehand
+     * @param words the number of words, from id 0 up, whose normalized TF-IDF vectors are scored against
+     *              the first one's
+     * @return the function applied to every pair of the target and a word
+     */
+    Work distance(int sentences, String function, int words) throws IOException;
+
+    /**
+     * @param sentences the number of sentences in the corpus of the model
+     * @param measure the name of a Measure
+     * @param kernels scalar for the scalar VectorKernels, or default for VectorKernels.DEFAULT
+     * @return the measure computed by the kernels between the first word's embedding and every word's
+     */
+    Work embeddingDistance(int sentences, String measure, String kernels) throws IOException;
+
+    /**
+     * @param sentences the number of sentences in the corpus of the model
+     * @param method modQuickSort, TopK or sort, which sorts every word id by score
+     * @param k the number of best words TopK keeps
+     * @return ranking a random score of every word of the model, with ties like those among rare words
+     */
+    Work ranking(int sentences, String method, int k) throws IOException;
+
+    /**
+     * @param sentences the number of sentences in the corpus of the model
+     * @param method topK or topKBatched
+     * @param measure the name of a Measure
+     * @param targets the number of target words, from id 0 up, in the batch
+     * @param k the number of words to return for each target
+     * @return answering the batch of TF-IDF queries, with the result cache turned off
+     */
+    Work batch(int sentences, String method, String measure, int targets, int k) throws IOException;
+
+    /**
+     * @param sentences the number of sentences in the corpus
+     * @param method regex for the old toLowerCase, split and "[a-zA-Z]+" preprocessing, or tokenizer
+     * @return splitting every sentence of the corpus into the words that are kept
+     * @throws IllegalStateException if the two methods do not keep the same number of words
+     */
+    Work tokenize(int sentences, String method) throws IOException;
+
+    /**
+     * Deletes the corpora.
+     */
+    @Override
+    void close() throws IOException;
+
+    /**
+     * One invocation of the work being timed.
+     */
+    interface Work {
+        /**
+         * @param blackhole consumes the results, so the JIT cannot drop the work as dead code
+         */
+        void run(Blackhole blackhole) throws Exception;
+    }
+}
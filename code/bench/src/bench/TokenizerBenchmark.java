@@ -0,0 +1,56 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the old way of splitting sentences into words (toLowerCase, split("\\s+") and the
+ * "[a-zA-Z]+" regex on every token, with an ArrayList for the words of the sentence) against Tokenizer,
+ * over every sentence of a synthetic Zipfian corpus. Setting up checks that both keep the same words.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenizerBenchmark {
+    @Param({"50000"})
+    public int sentences;
+
+    @Param({"regex", "tokenizer"})
+    public String method;
+
+    protected Stages stages;
+    protected Stages.Work work;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        stages = Stages.load();
+        work = stages.tokenize(sentences, method);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        stages.close();
+    }
+
+    @Benchmark
+    public void tokenize(Blackhole blackhole) throws Exception {
+        work.run(blackhole);
+    }
+}
@@ -0,0 +1,120 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The kernels of VectorKernels written with the Vector API, processing as many lanes at once as the
+ * CPU's widest vector registers hold. Each loop accumulates lane-wise in a vector and reduces it once at
+ * the end, then finishes the elements that do not fill a whole vector one at a time. The sums are added
+ * in a different order than the scalar kernels add them, so results can differ in the last bits.
+ *
+ * Compiling and using this class needs --add-modules jdk.incubator.vector, so it is kept out of code/src
+ * and compiled separately, as VectorKernels describes; VectorKernels.DEFAULT only loads it when the module
+ * is present.
+ */
+public class VectorKernelsSimd extends VectorKernels {
+    protected static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    protected static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public String name() {
+        return "simd x" + FLOATS.length();
+    }
+
+    @Override
+    public float dot(float[] a, int offsetA, float[] b, int offsetB, int length) {
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int k = 0;
+        for (int bound = FLOATS.loopBound(length); k < bound; k += FLOATS.length()) {
+            FloatVector va = FloatVector.fromArray(FLOATS, a, offsetA + k);
+            FloatVector vb = FloatVector.fromArray(FLOATS, b, offsetB + k);
+            sum = va.fma(vb, sum);
+        }
+        float s = sum.reduceLanes(VectorOperators.ADD);
+        for (; k < length; k++) {
+            s += a[offsetA + k] * b[offsetB + k];
+        }
+        return s;
+    }
+
+    @Override
+    public float l1Distance(float[] a, int offsetA, float[] b, int offsetB, int length) {
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int k = 0;
+        for (int bound = FLOATS.loopBound(length); k < bound; k += FLOATS.length()) {
+            FloatVector va = FloatVector.fromArray(FLOATS, a, offsetA + k);
+            FloatVector vb = FloatVector.fromArray(FLOATS, b, offsetB + k);
+            sum = sum.add(va.sub(vb).abs());
+        }
+        float s = sum.reduceLanes(VectorOperators.ADD);
+        for (; k < length; k++) {
+            s += Math.abs(a[offsetA + k] - b[offsetB + k]);
+        }
+        return s;
+    }
+
+    @Override
+    public float squaredDistance(float[] a, int offsetA, float[] b, int offsetB, int length) {
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int k = 0;
+        for (int bound = FLOATS.loopBound(length); k < bound; k += FLOATS.length()) {
+            FloatVector d = FloatVector.fromArray(FLOATS, a, offsetA + k).sub(FloatVector.fromArray(FLOATS, b, offsetB + k));
+            sum = d.fma(d, sum);
+        }
+        float s = sum.reduceLanes(VectorOperators.ADD);
+        for (; k < length; k++) {
+            float d = a[offsetA + k] - b[offsetB + k];
+            s += d * d;
+        }
+        return s;
+    }
+
+    @Override
+    public double dot(double[] a, int offsetA, double[] b, int offsetB, int length) {
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        int k = 0;
+        for (int bound = DOUBLES.loopBound(length); k < bound; k += DOUBLES.length()) {
+            DoubleVector va = DoubleVector.fromArray(DOUBLES, a, offsetA + k);
+            DoubleVector vb = DoubleVector.fromArray(DOUBLES, b, offsetB + k);
+            sum = va.fma(vb, sum);
+        }
+        double s = sum.reduceLanes(VectorOperators.ADD);
+        for (; k < length; k++) {
+            s += a[offsetA + k] * b[offsetB + k];
+        }
+        return s;
+    }
+
+    @Override
+    public double l1Distance(double[] a, int offsetA, double[] b, int offsetB, int length) {
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        int k = 0;
+        for (int bound = DOUBLES.loopBound(length); k < bound; k += DOUBLES.length()) {
+            DoubleVector va = DoubleVector.fromArray(DOUBLES, a, offsetA + k);
+            DoubleVector vb = DoubleVector.fromArray(DOUBLES, b, offsetB + k);
+            sum = sum.add(va.sub(vb).abs());
+        }
+        double s = sum.reduceLanes(VectorOperators.ADD);
+        for (; k < length; k++) {
+            s += Math.abs(a[offsetA + k] - b[offsetB + k]);
+        }
+        return s;
+    }
+
+    @Override
+    public double squaredDistance(double[] a, int offsetA, double[] b, int offsetB, int length) {
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        int k = 0;
+        for (int bound = DOUBLES.loopBound(length); k < bound; k += DOUBLES.length()) {
+            DoubleVector d = DoubleVector.fromArray(DOUBLES, a, offsetA + k).sub(DoubleVector.fromArray(DOUBLES, b, offsetB + k));
+            sum = d.fma(d, sum);
+        }
+        double s = sum.reduceLanes(VectorOperators.ADD);
+        for (; k < length; k++) {
+            double d = a[offsetA + k] - b[offsetB + k];
+            s += d * d;
+        }
+        return s;
+    }
+}
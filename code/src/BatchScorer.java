@@ -0,0 +1,255 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Scores a whole batch of target words against the vocabulary as one sparse matrix product. The targets
+ * form the rows of a query matrix Q and the normalized candidate vectors the rows of a matrix C, and
+ * Q times C-transpose gives the dot product of every target with every candidate. The candidates are
+ * processed in blocks of BLOCK_SIZE words: each block is transposed once into columns keyed by context
+ * word, and is then reused by every target in the batch while it is still in cache, instead of every
+ * target walking all of the candidate vectors on its own.
+ *
+ * The measures are computed from the products and the norms of the vectors:
+ *
+ *     COSINE     dot / (|t| |c|), with the same norms and in the same order as SparseVector.cosine, so the
+ *                scores are exactly those of scoring one target at a time
+ *     EUCLIDEAN  sqrt(|t|^2 + |c|^2 - 2 dot)
+ *     L1         |t|_1 + |c|_1 + the sum over the shared contexts of |t_i - c_i| - |t_i| - |c_i|
+ *
+ * The EUCLIDEAN and L1 identities sum in a different order than the merge-style distances, so those scores
+ * can differ from them in the last few bits.
+ */
+public class BatchScorer {
+    // number of candidate words transposed and scored together
+    protected static final int BLOCK_SIZE = 4096;
+
+    protected final VectorStore vectors; // normalized vectors of the snapshot being queried
+    protected final int vocabularySize;
+
+    /**
+     * @param vectors the normalized vectors of the snapshot being queried
+     * @param vocabularySize the number of words to score
+     */
+    public BatchScorer(VectorStore vectors, int vocabularySize) {
+        this.vectors = vectors;
+        this.vocabularySize = vocabularySize;
+    }
+
+
+    /**
+
+     Scores every word in the vocabulary against every target word, keeping the best words for each.
+     Each target word itself is skipped.
+     @param queries the queries to score for
+     @param targetIds the id of each query's target word
+     @param targets the normalized vector of each query's target word
+     @param pool the pool to score blocks of candidates on in parallel, or null to score them on this thread
+     @return the best words for each query
+     */
+    public TopK[] score(Query[] queries, int[] targetIds, SparseVector[] targets, ForkJoinPool pool) {
+        TopK[] tops = new TopK[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            tops[q] = new TopK(queries[q].k(), queries[q].measure());
+        }
+
+        if (pool == null || vocabularySize <= BLOCK_SIZE) {
+            for (int from = 0; from < vocabularySize; from += BLOCK_SIZE) {
+                scoreBlock(queries, targetIds, targets, from, Math.min(from + BLOCK_SIZE, vocabularySize), tops);
+            }
+            return tops;
+        }
+
+        // Score every block on the pool into its own selectors, then merge them
+        List<Callable<TopK[]>> tasks = new ArrayList<>();
+        for (int from = 0; from < vocabularySize; from += BLOCK_SIZE) {
+            int blockFrom = from;
+            int blockTo = Math.min(from + BLOCK_SIZE, vocabularySize);
+            tasks.add(() -> {
+                TopK[] blockTops = new TopK[queries.length];
+                for (int q = 0; q < queries.length; q++) {
+                    blockTops[q] = new TopK(queries[q].k(), queries[q].measure());
+                }
+                scoreBlock(queries, targetIds, targets, blockFrom, blockTo, blockTops);
+                return blockTops;
+            });
+        }
+        for (Future<TopK[]> result : pool.invokeAll(tasks)) {
+            TopK[] blockTops;
+            try {
+                blockTops = result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while scoring", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException("Scoring failed", e.getCause());
+            }
+            for (int q = 0; q < queries.length; q++) {
+                tops[q].addAll(blockTops[q]);
+            }
+        }
+        return tops;
+    }
+
+
+    /**
+
+     Scores one block of candidates against every target word.
+     @param from the first word id of the block
+     @param to one past the last word id of the block
+     @param tops the selectors the scores are offered to, one per query
+     */
+    protected void scoreBlock(Query[] queries, int[] targetIds, SparseVector[] targets, int from, int to, TopK[] tops) {
+        Block[] blocks = new Block[Weighting.values().length]; // the block under each weighting, built when first needed
+        double[] dots = new double[to - from];
+        double[] corrections = null; // L1 corrections for the shared contexts, only allocated if needed
+
+        for (int q = 0; q < queries.length; q++) {
+            Weighting weighting = queries[q].weighting();
+            Measure measure = queries[q].measure();
+            Block block = blocks[weighting.ordinal()];
+            if (block == null) {
+                block = blocks[weighting.ordinal()] = new Block(vectors, weighting, from, to);
+            }
+            if (measure == Measure.L1 && corrections == null) {
+                corrections = new double[to - from];
+            }
+
+            // One row of Q times the block's columns, in the target's context order like SparseVector.dot
+            SparseVector target = targets[q];
+            Arrays.fill(dots, 0.0);
+            if (measure == Measure.L1) {
+                Arrays.fill(corrections, 0.0);
+            }
+            for (int i = 0; i < target.size(); i++) {
+                int column = Arrays.binarySearch(block.contexts, target.id(i));
+                if (column < 0) {
+                    continue;
+                }
+                double value = target.value(i);
+                for (int p = block.columnStarts[column]; p < block.columnStarts[column + 1]; p++) {
+                    int c = block.candidates[p];
+                    double candidateValue = block.values[p];
+                    dots[c] += value * candidateValue;
+                    if (measure == Measure.L1) {
+                        corrections[c] += Math.abs(value - candidateValue) - Math.abs(value) - Math.abs(candidateValue);
+                    }
+                }
+            }
+
+            double targetSquares = sumOfSquares(target);
+            double targetLength = Math.sqrt(targetSquares);
+            double targetAbs = measure == Measure.L1 ? sumOfAbs(target) : 0;
+            for (int c = 0; c < to - from; c++) {
+                int id = from + c;
+                if (id == targetIds[q]) {
+                    continue;
+                }
+                double score;
+                switch (measure) {
+                    case COSINE:
+                        score = targetLength == 0.0 || block.lengths[c] == 0.0
+                                ? 0 : dots[c] / (targetLength * block.lengths[c]);
+                        break;
+                    case EUCLIDEAN:
+                        score = Math.sqrt(Math.max(0, targetSquares + block.squares[c] - 2 * dots[c]));
+                        break;
+                    default:
+                        score = targetAbs + block.abs[c] + corrections[c];
+                        break;
+                }
+                tops[q].offer(score, id);
+            }
+        }
+    }
+
+    /**
+     * @return the sum of the squared values, summed the same way as SparseVector.l2Length
+     */
+    protected static double sumOfSquares(SparseVector vec) {
+        double sum = 0.0;
+        for (int i = 0; i < vec.size(); i++) {
+            sum += vec.value(i) * vec.value(i);
+        }
+        return sum;
+    }
+
+    protected static double sumOfAbs(SparseVector vec) {
+        double sum = 0.0;
+        for (int i = 0; i < vec.size(); i++) {
+            sum += Math.abs(vec.value(i));
+        }
+        return sum;
+    }
+
+    /**
+     * A block of candidate vectors under one weighting, transposed into columns: the entries of the
+     * candidates are grouped by context word, in ascending context order.
+     */
+    protected static class Block {
+        protected final int[] contexts; // distinct context ids of the block, ascending
+        protected final int[] columnStarts; // index of each context's first entry, plus the number of entries
+        protected final int[] candidates; // candidate of each entry, relative to the start of the block
+        protected final double[] values; // value of each entry
+        protected final double[] squares; // sum of squares of each candidate
+        protected final double[] lengths; // L2 length of each candidate
+        protected final double[] abs; // L1 length of each candidate
+
+        protected Block(VectorStore vectors, Weighting weighting, int from, int to) {
+            int size = to - from;
+            SparseVector[] rows = new SparseVector[size];
+            squares = new double[size];
+            lengths = new double[size];
+            abs = new double[size];
+            int nnz = 0;
+            for (int c = 0; c < size; c++) {
+                rows[c] = vectors.get(from + c, weighting);
+                squares[c] = sumOfSquares(rows[c]);
+                lengths[c] = Math.sqrt(squares[c]);
+                abs[c] = sumOfAbs(rows[c]);
+                nnz += rows[c].size();
+            }
+
+            // Sort the entries by context, then by candidate, as (context, entry index) pairs
+            long[] keys = new long[nnz];
+            double[] rowValues = new double[nnz];
+            int[] rowCandidates = new int[nnz];
+            int e = 0;
+            for (int c = 0; c < size; c++) {
+                for (int i = 0; i < rows[c].size(); i++) {
+                    keys[e] = ((long) rows[c].id(i) << 32) | e;
+                    rowValues[e] = rows[c].value(i);
+                    rowCandidates[e] = c;
+                    e++;
+                }
+            }
+            Arrays.sort(keys);
+
+            int[] blockContexts = new int[nnz];
+            int[] starts = new int[nnz + 1];
+            candidates = new int[nnz];
+            values = new double[nnz];
+            int columns = 0;
+            for (int p = 0; p < nnz; p++) {
+                int context = (int) (keys[p] >>> 32);
+                int entry = (int) keys[p];
+                if (columns == 0 || blockContexts[columns - 1] != context) {
+                    blockContexts[columns] = context;
+                    starts[columns++] = p;
+                }
+                candidates[p] = rowCandidates[entry];
+                values[p] = rowValues[entry];
+            }
+            starts[columns] = nnz;
+            contexts = Arrays.copyOf(blockContexts, columns);
+            columnStarts = Arrays.copyOf(starts, columns + 1);
+        }
+    }
+}
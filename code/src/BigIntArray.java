@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An int array indexed by long, split into IntBuffer chunks so it can hold more than Integer.MAX_VALUE
+ * entries and be backed by the Java heap, by direct buffers outside the heap, or by read-only
+ * memory-mapped regions of a file. Mapped arrays are not copied onto the heap; their pages are loaded by
+ * the operating system as they are read and shared with every other process that maps the same file.
+ * Direct arrays are never moved or scanned by the garbage collector, so large ones do not lengthen
+ * collections or count against the maximum heap size.
+ */
+public class BigIntArray {
+    protected static final int CHUNK_SHIFT = 28; // 2^28 ints, 1 GB, per chunk
+    protected static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    protected static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    protected final IntBuffer[] chunks;
+    protected final long length;
+
+    protected BigIntArray(IntBuffer[] chunks, long length) {
+        this.chunks = chunks;
+        this.length = length;
+    }
+
+
+    /**
+
+     Creates a zero-filled array on the heap.
+     @param length the number of ints in the array
+     @return the new array
+     */
+    public static BigIntArray allocate(long length) {
+        IntBuffer[] chunks = new IntBuffer[numChunks(length)];
+        for (int c = 0; c < chunks.length; c++) {
+            chunks[c] = IntBuffer.allocate(chunkLength(length, c));
+        }
+        return new BigIntArray(chunks, length);
+    }
+
+
+    /**
+
+     Creates a zero-filled array in direct buffers outside the heap. The memory is given back when the
+     array is garbage collected.
+     @param length the number of ints in the array
+     @return the new array
+     */
+    public static BigIntArray allocateDirect(long length) {
+        IntBuffer[] chunks = new IntBuffer[numChunks(length)];
+        for (int c = 0; c < chunks.length; c++) {
+            chunks[c] = ByteBuffer.allocateDirect(chunkLength(length, c) * Integer.BYTES).asIntBuffer();
+        }
+        return new BigIntArray(chunks, length);
+    }
+
+
+    /**
+
+     Creates a zero-filled array on the heap or outside it.
+     @param length the number of ints in the array
+     @param offHeap whether to allocate the array in direct buffers
+     @return the new array
+     */
+    public static BigIntArray allocate(long length, boolean offHeap) {
+        return offHeap ? allocateDirect(length) : allocate(length);
+    }
+
+
+    /**
+
+     Maps a run of big-endian ints in a file as a read-only array.
+     @param channel the file to map
+     @param position the offset in the file of the first int
+     @param length the number of ints in the array
+     @return the mapped array
+     @throws IOException if the file cannot be mapped
+     */
+    public static BigIntArray map(FileChannel channel, long position, long length) throws IOException {
+        IntBuffer[] chunks = new IntBuffer[numChunks(length)];
+        for (int c = 0; c < chunks.length; c++) {
+            int ints = chunkLength(length, c);
+            long offset = position + ((long) c << CHUNK_SHIFT) * Integer.BYTES;
+            chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) ints * Integer.BYTES).asIntBuffer();
+        }
+        return new BigIntArray(chunks, length);
+    }
+
+    /**
+     * @return the number of ints in the array
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return whether the array is outside the heap, in direct buffers or mapped from a file
+     */
+    public boolean isOffHeap() {
+        return length > 0 && chunks[0].isDirect();
+    }
+
+    /**
+     * @return the number of bytes the array takes up on the heap
+     */
+    public long heapBytes() {
+        return isOffHeap() ? 0 : length * Integer.BYTES;
+    }
+
+    /**
+     * @return the number of bytes the array takes up outside the heap, in direct buffers or mapped pages
+     */
+    public long offHeapBytes() {
+        return isOffHeap() ? length * Integer.BYTES : 0;
+    }
+
+    public int get(long i) {
+        return chunks[(int) (i >>> CHUNK_SHIFT)].get((int) (i & CHUNK_MASK));
+    }
+
+    public void set(long i, int value) {
+        chunks[(int) (i >>> CHUNK_SHIFT)].put((int) (i & CHUNK_MASK), value);
+    }
+
+
+    /**
+
+     Copies a run of ints out of the array.
+     @param from the index of the first int to copy
+     @param dst the array to copy into
+     @param offset the index in dst to copy the first int to
+     @param count the number of ints to copy
+     */
+    public void get(long from, int[] dst, int offset, int count) {
+        while (count > 0) {
+            IntBuffer chunk = chunks[(int) (from >>> CHUNK_SHIFT)];
+            int index = (int) (from & CHUNK_MASK);
+            // A run may cross into the next chunk
+            int n = Math.min(count, chunk.limit() - index);
+            chunk.get(index, dst, offset, n);
+            from += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+
+    /**
+
+     Writes the whole array to a channel as big-endian ints.
+     @param out the channel to write to
+     @throws IOException if the channel cannot be written to
+     */
+    public void writeTo(WritableByteChannel out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        IntBuffer ints = buffer.asIntBuffer();
+        for (IntBuffer chunk : chunks) {
+            for (int i = 0; i < chunk.limit(); ) {
+                int n = Math.min(ints.capacity(), chunk.limit() - i);
+                ints.clear();
+                ints.put(0, chunk, i, n);
+                buffer.clear().limit(n * Integer.BYTES);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                i += n;
+            }
+        }
+    }
+
+    protected static int numChunks(long length) {
+        return (int) ((length + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+    }
+
+    protected static int chunkLength(long length, int chunk) {
+        return (int) Math.min(CHUNK_SIZE, length - ((long) chunk << CHUNK_SHIFT));
+    }
+}
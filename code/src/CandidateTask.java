@@ -0,0 +1,46 @@
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Scores a range of a COSINE query's candidate words on a ForkJoinPool, splitting the range in half until
+ * the pieces are small enough to score sequentially, as ScoreTask does for ranges of the whole vocabulary.
+ * Only candidates that score above 0 are kept, so the words that score 0 can be added once the halves have
+ * been merged; see Similarity.scoreCandidates.
+ */
+public class CandidateTask extends RecursiveTask<TopK> {
+    private static final long serialVersionUID = 1L;
+
+    // ranges of at most this many candidates are scored without splitting further
+    protected static final int THRESHOLD = 2048;
+
+    protected final VectorStore vectors; // normalized vectors of the snapshot being queried
+    protected final Query query;
+    protected final SparseVector target; // normalized vector of the query's target word
+    protected final double targetLength; // L2 length of target
+    protected final int[] candidates; // ids of the words that share a context with the target, ascending
+    protected final int from; // index of the first candidate to score
+    protected final int to; // one past the index of the last candidate to score
+
+    public CandidateTask(VectorStore vectors, Query query, SparseVector target, double targetLength, int[] candidates,
+                         int from, int to) {
+        this.vectors = vectors;
+        this.query = query;
+        this.target = target;
+        this.targetLength = targetLength;
+        this.candidates = candidates;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected TopK compute() {
+        if (to - from <= THRESHOLD) {
+            return Similarity.scoreCandidateRange(vectors, query, target, targetLength, candidates, from, to);
+        }
+        int mid = (from + to) >>> 1;
+        CandidateTask left = new CandidateTask(vectors, query, target, targetLength, candidates, from, mid);
+        left.fork();
+        TopK top = new CandidateTask(vectors, query, target, targetLength, candidates, mid, to).compute();
+        top.addAll(left.join());
+        return top;
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.BitSet;
+
+/**
+ * An inverted index from each context word to the words that co-occur with it: the transpose of a
+ * snapshot's co-occurrence matrix, in the same CSR layout. The words of context c are stored at indices
+ * offsets[c] up to offsets[c + 1] of words, in ascending id order.
+ *
+ * The cosine of two non-negative vectors is 0 unless they share a context, so the only words worth
+ * scoring against a COSINE target are the ones found in the postings of the target's contexts. Under a
+ * Zipfian vocabulary most words have few contexts and most contexts few words, so this is a small part of
+ * the vocabulary. Contexts with very long postings, such as the most common words, can be skipped for
+ * speed, at the cost of missing the words that share nothing but those contexts with the target.
+ */
+public class ContextIndex {
+    protected final long[] offsets; // index of the first posting of each context, plus the total number of postings
+    protected final BigIntArray words; // id of the word of each posting, ascending within each context
+
+    protected ContextIndex(long[] offsets, BigIntArray words) {
+        this.offsets = offsets;
+        this.words = words;
+    }
+
+
+    /**
+
+     Builds the index of a co-occurrence matrix by transposing it.
+     @param matrix the matrix to index
+     @return the index of the matrix's contexts
+     */
+    public static ContextIndex build(CooccurrenceMatrix matrix) {
+        int rows = matrix.rows();
+        long nnz = matrix.nnz();
+
+        // Count the postings of each context, then turn the counts into offsets
+        long[] offsets = new long[rows + 1];
+        for (long i = 0; i < nnz; i++) {
+            offsets[matrix.contexts.get(i) + 1]++;
+        }
+        for (int c = 0; c < rows; c++) {
+            offsets[c + 1] += offsets[c];
+        }
+
+        // Rows are visited in id order, so every context's postings come out sorted
+        BigIntArray words = BigIntArray.allocate(nnz);
+        long[] next = new long[rows];
+        System.arraycopy(offsets, 0, next, 0, rows);
+        for (int w = 0; w < rows; w++) {
+            for (long i = matrix.rowOffsets[w]; i < matrix.rowOffsets[w + 1]; i++) {
+                words.set(next[matrix.contexts.get(i)]++, w);
+            }
+        }
+        return new ContextIndex(offsets, words);
+    }
+
+    /**
+     * @param context the id of a context word
+     * @return the number of words that co-occur with the context
+     */
+    public int postings(int context) {
+        return (int) (offsets[context + 1] - offsets[context]);
+    }
+
+
+    /**
+
+     Finds the words that share at least one context with a target vector. Contexts whose value in the
+     target is 0 are skipped, since they add nothing to a dot product.
+     @param target the target's vector
+     @param targetId the id of the target word, which is left out
+     @param maxPostings contexts that co-occur with more words than this are skipped
+     @return the ids of the words found, ascending
+     */
+    public int[] candidates(SparseVector target, int targetId, int maxPostings) {
+        BitSet found = new BitSet(offsets.length - 1);
+        for (int i = 0; i < target.size(); i++) {
+            int context = target.id(i);
+            if (target.value(i) == 0 || postings(context) > maxPostings) {
+                continue;
+            }
+            for (long p = offsets[context]; p < offsets[context + 1]; p++) {
+                found.set(words.get(p));
+            }
+        }
+        found.clear(targetId);
+        return found.stream().toArray();
+    }
+
+    /**
+     * @return the number of bytes the index takes up on the heap
+     */
+    public long memoryBytes() {
+        return (long) offsets.length * Long.BYTES + words.heapBytes();
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Which words count as the context of a word: the words up to size positions before and after it in the
+ * same sentence. Without decay every context occurrence counts 1. With decay, nearer words count more:
+ * a word d positions away counts size + 1 - d, so the adjacent words count size and the farthest ones 1.
+ * This is the expected weight of word2vec's dynamic window scaled up to whole numbers, so counts stay
+ * integers and every store and file format of the counts is unchanged.
+ */
+public class ContextWindow {
+    public static final ContextWindow DEFAULT = new ContextWindow(2, false);
+
+    protected final int size; // number of words on each side of a word that count as its context
+    protected final boolean decay; // whether nearer context words count more
+
+    /**
+     * @param size the number of words on each side of a word that count as its context
+     * @param decay true to count nearer context words more, false to count every one of them 1
+     * @throws IllegalArgumentException if size is less than 1
+     */
+    public ContextWindow(int size, boolean decay) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Window size must be at least 1");
+        }
+        this.size = size;
+        this.decay = decay;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean decay() {
+        return decay;
+    }
+
+    /**
+     * @param distance the number of positions between a word and its context word, from 1 to size
+     * @return what one co-occurrence at that distance adds to the count
+     */
+    public int weight(int distance) {
+        return decay ? size + 1 - distance : 1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ContextWindow)) {
+            return false;
+        }
+        ContextWindow other = (ContextWindow) o;
+        return size == other.size && decay == other.decay;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * size + (decay ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "+/-" + size + (decay ? " with decay" : "");
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.Arrays;
+
+/**
+ * Co-occurrence and document frequency counts for some part of the sentences file, kept in primitive
+ * structures. Each ingestion worker fills its own instance with its own local word ids, and the
+ * partial counts are then merged into one in file order, so that the merged vocabulary hands out ids
+ * in the same first-seen order as reading the whole file from the start would.
+ */
+public class CooccurrenceCounts {
+    protected final ContextWindow window; // which words count as a word's context, and how much
+    protected final Vocabulary vocabulary; // words seen, interned as ids local to these counts
+    protected final LongIntHashMap pairs; // packed (word id, context id) pairs and their co-occurrence counts
+    protected int[] sentenceFrequencies; // number of sentences each word id occurs in
+    protected int[] lastSentence; // the last sentence each word id was seen in, to count it once per sentence
+    protected long wordCount; // number of word occurrences counted
+    protected long numSentences; // number of sentences counted
+
+    public CooccurrenceCounts() {
+        this(ContextWindow.DEFAULT);
+    }
+
+    /**
+     * @param window which words count as a word's context, and how much each one counts
+     */
+    public CooccurrenceCounts(ContextWindow window) {
+        this.window = window;
+        vocabulary = new Vocabulary();
+        pairs = new LongIntHashMap(1 << 12);
+        sentenceFrequencies = new int[1 << 10];
+        lastSentence = new int[1 << 10];
+        Arrays.fill(lastSentence, -1);
+    }
+
+
+    /**
+
+     Counts one preprocessed sentence. Every word co-occurs with the words up to the window's size
+     positions before and after it, but not with itself at its own position; each co-occurrence adds
+     the window's weight for its distance.
+     @param words the ids of the sentence's words, in order, from this object's vocabulary
+     @param length the number of words in the sentence
+     */
+    public void addSentence(int[] words, int length) {
+        int sentence = (int) numSentences;
+
+        for (int j = 0; j < length; j++) {
+            int jWord = words[j];
+            ensureCapacity(jWord + 1);
+
+            // Count the word once per sentence
+            if (lastSentence[jWord] != sentence) {
+                lastSentence[jWord] = sentence;
+                sentenceFrequencies[jWord]++;
+            }
+
+            // Iterate over each word within the context window
+            int startContext = Math.max(0, j - window.size);
+            int endContext = Math.min(length - 1, j + window.size);
+            for (int k = startContext; k <= endContext; k++) {
+                // Don't count a word as co-occurring with itself
+                if (j != k) {
+                    pairs.addTo(LongIntHashMap.pack(jWord, words[k]), window.weight(Math.abs(j - k)));
+                }
+            }
+            wordCount++;
+        }
+        numSentences++;
+    }
+
+
+    /**
+
+     Adds another set of counts, which came from later in the file, to these ones. Words the other counts
+     saw that are new to these ones get ids after all of the existing ones, in the other counts' order.
+     @param other the counts to add
+     @throws IllegalArgumentException if the other counts were counted with a different window
+     */
+    public void merge(CooccurrenceCounts other) {
+        if (!window.equals(other.window)) {
+            throw new IllegalArgumentException("Cannot merge counts of window " + other.window + " into " + window);
+        }
+        // Map each of the other counts' ids to an id in this vocabulary
+        int[] remap = new int[other.vocabulary.size()];
+        for (int i = 0; i < remap.length; i++) {
+            remap[i] = vocabulary.add(other.vocabulary.word(i));
+        }
+        ensureCapacity(vocabulary.size());
+
+        for (int i = 0; i < remap.length; i++) {
+            sentenceFrequencies[remap[i]] += other.sentenceFrequencies[i];
+        }
+        for (int s = other.pairs.nextSlot(0); s >= 0; s = other.pairs.nextSlot(s + 1)) {
+            long key = other.pairs.keyAt(s);
+            int word = remap[LongIntHashMap.wordOf(key)];
+            int context = remap[LongIntHashMap.contextOf(key)];
+            pairs.addTo(LongIntHashMap.pack(word, context), other.pairs.valueAt(s));
+        }
+        wordCount += other.wordCount;
+        numSentences += other.numSentences;
+    }
+
+
+    /**
+     * @param wordId the id of a word in these counts' vocabulary
+     * @return the number of sentences the word occurs in
+     */
+    public int sentenceFrequency(int wordId) {
+        return sentenceFrequencies[wordId];
+    }
+
+    protected void ensureCapacity(int words) {
+        if (words > sentenceFrequencies.length) {
+            int capacity = Math.max(words, sentenceFrequencies.length * 2);
+            int oldLength = lastSentence.length;
+            sentenceFrequencies = Arrays.copyOf(sentenceFrequencies, capacity);
+            lastSentence = Arrays.copyOf(lastSentence, capacity);
+            Arrays.fill(lastSentence, oldLength, capacity, -1);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+import java.util.Arrays;
+
+/**
+ * The co-occurrence counts of every word in compressed sparse row (CSR) form. Row w holds the context
+ * words that occur around word w, sorted by id, and how often they do: its entries are stored at
+ * indices rowOffsets[w] up to rowOffsets[w + 1] of contexts and counts. The two entry arrays are on the
+ * heap, in direct buffers outside it, or mapped from a model file. Either way an entry costs 8 bytes, where
+ * a map of maps from words to boxed counts costs well over a hundred.
+ */
+public class CooccurrenceMatrix {
+    protected final long[] rowOffsets; // index of the first entry of each row, plus the total number of entries
+    protected final BigIntArray contexts; // context word id of each entry, sorted within each row
+    protected final BigIntArray counts; // co-occurrence count of each entry
+
+    public CooccurrenceMatrix(long[] rowOffsets, BigIntArray contexts, BigIntArray counts) {
+        this.rowOffsets = rowOffsets;
+        this.contexts = contexts;
+        this.counts = counts;
+    }
+
+
+    /**
+
+     Compacts the counts of a finished ingestion into a matrix on the heap.
+     @param cooccurrences the counts to compact
+     @return the matrix of the counts, with one row per word in the counts' vocabulary
+     */
+    public static CooccurrenceMatrix fromCounts(CooccurrenceCounts cooccurrences) {
+        return fromCounts(cooccurrences, false);
+    }
+
+
+    /**
+
+     Compacts the counts of a finished ingestion into a matrix.
+     @param cooccurrences the counts to compact
+     @param offHeap whether to keep the entries in direct buffers outside the heap
+     @return the matrix of the counts, with one row per word in the counts' vocabulary
+     */
+    public static CooccurrenceMatrix fromCounts(CooccurrenceCounts cooccurrences, boolean offHeap) {
+        return fromPairs(cooccurrences.pairs, cooccurrences.vocabulary.size(), offHeap);
+    }
+
+
+    /**
+
+     Compacts counted (word id, context id) pairs into a matrix on the heap.
+     @param pairs the counts of the pairs, keyed by LongIntHashMap.pack(wordId, contextId)
+     @param rows the number of rows of the matrix; every word id in the pairs must be below it
+     @return the matrix of the counts
+     */
+    public static CooccurrenceMatrix fromPairs(LongIntHashMap pairs, int rows) {
+        return fromPairs(pairs, rows, false);
+    }
+
+
+    /**
+
+     Compacts counted (word id, context id) pairs into a matrix.
+     @param pairs the counts of the pairs, keyed by LongIntHashMap.pack(wordId, contextId)
+     @param rows the number of rows of the matrix; every word id in the pairs must be below it
+     @param offHeap whether to keep the entries in direct buffers outside the heap
+     @return the matrix of the counts
+     */
+    public static CooccurrenceMatrix fromPairs(LongIntHashMap pairs, int rows, boolean offHeap) {
+        // Count the entries of each row, then turn the counts into offsets
+        long[] rowOffsets = new long[rows + 1];
+        for (int s = pairs.nextSlot(0); s >= 0; s = pairs.nextSlot(s + 1)) {
+            rowOffsets[LongIntHashMap.wordOf(pairs.keyAt(s)) + 1]++;
+        }
+        for (int w = 0; w < rows; w++) {
+            rowOffsets[w + 1] += rowOffsets[w];
+        }
+
+        // Drop every entry in at the next free index of its row
+        long nnz = rowOffsets[rows];
+        BigIntArray contexts = BigIntArray.allocate(nnz, offHeap);
+        BigIntArray counts = BigIntArray.allocate(nnz, offHeap);
+        long[] next = Arrays.copyOf(rowOffsets, rows);
+        for (int s = pairs.nextSlot(0); s >= 0; s = pairs.nextSlot(s + 1)) {
+            long key = pairs.keyAt(s);
+            long i = next[LongIntHashMap.wordOf(key)]++;
+            contexts.set(i, LongIntHashMap.contextOf(key));
+            counts.set(i, pairs.valueAt(s));
+        }
+
+        CooccurrenceMatrix matrix = new CooccurrenceMatrix(rowOffsets, contexts, counts);
+        matrix.sortRows();
+        return matrix;
+    }
+
+
+    /**
+
+     Adds the counts of another matrix to this one's. Rows that are empty in the other matrix are copied
+     over as they are; the others are merged by context id.
+     @param delta the counts to add; may have more rows than this matrix, for words that are new to it
+     @return a new matrix holding the sums, on the heap if this matrix is and in direct buffers otherwise
+     */
+    public CooccurrenceMatrix plus(CooccurrenceMatrix delta) {
+        int rows = Math.max(rows(), delta.rows());
+
+        // The merged length of every row, to lay out the new matrix
+        long[] mergedOffsets = new long[rows + 1];
+        int[] ids1 = new int[0], ids2 = new int[0];
+        for (int w = 0; w < rows; w++) {
+            int length1 = w < rows() ? rowLength(w) : 0;
+            int length2 = w < delta.rows() ? delta.rowLength(w) : 0;
+            int length = length1 + length2;
+            if (length1 > 0 && length2 > 0) {
+                if (ids1.length < length1) {
+                    ids1 = new int[Math.max(length1, ids1.length * 2)];
+                }
+                if (ids2.length < length2) {
+                    ids2 = new int[Math.max(length2, ids2.length * 2)];
+                }
+                contexts.get(rowOffsets[w], ids1, 0, length1);
+                delta.contexts.get(delta.rowOffsets[w], ids2, 0, length2);
+                length -= shared(ids1, length1, ids2, length2);
+            }
+            mergedOffsets[w + 1] = mergedOffsets[w] + length;
+        }
+
+        boolean offHeap = contexts.isOffHeap();
+        BigIntArray mergedContexts = BigIntArray.allocate(mergedOffsets[rows], offHeap);
+        BigIntArray mergedCounts = BigIntArray.allocate(mergedOffsets[rows], offHeap);
+        for (int w = 0; w < rows; w++) {
+            long i = w < rows() ? rowOffsets[w] : 0;
+            long iEnd = w < rows() ? rowOffsets[w + 1] : 0;
+            long j = w < delta.rows() ? delta.rowOffsets[w] : 0;
+            long jEnd = w < delta.rows() ? delta.rowOffsets[w + 1] : 0;
+            long out = mergedOffsets[w];
+
+            // Merge the two sorted rows, adding up the counts of the contexts they share
+            while (i < iEnd || j < jEnd) {
+                int context1 = i < iEnd ? contexts.get(i) : Integer.MAX_VALUE;
+                int context2 = j < jEnd ? delta.contexts.get(j) : Integer.MAX_VALUE;
+                if (context1 == context2) {
+                    mergedContexts.set(out, context1);
+                    mergedCounts.set(out++, counts.get(i++) + delta.counts.get(j++));
+                } else if (context1 < context2) {
+                    mergedContexts.set(out, context1);
+                    mergedCounts.set(out++, counts.get(i++));
+                } else {
+                    mergedContexts.set(out, context2);
+                    mergedCounts.set(out++, delta.counts.get(j++));
+                }
+            }
+        }
+        return new CooccurrenceMatrix(mergedOffsets, mergedContexts, mergedCounts);
+    }
+
+
+    /**
+
+     Counts the ids two sorted runs have in common.
+     */
+    protected static int shared(int[] ids1, int length1, int[] ids2, int length2) {
+        int i = 0, j = 0, shared = 0;
+        while (i < length1 && j < length2) {
+            if (ids1[i] == ids2[j]) {
+                shared++;
+                i++;
+                j++;
+            } else if (ids1[i] < ids2[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return shared;
+    }
+
+
+    /**
+
+     Sorts the entries of every row by context id.
+     */
+    protected void sortRows() {
+        long[] entries = new long[0];
+        for (int w = 0; w < rows(); w++) {
+            int length = rowLength(w);
+            if (entries.length < length) {
+                entries = new long[Math.max(length, entries.length * 2)];
+            }
+
+            // Pack each entry as (context, count) so sorting the longs sorts by context
+            long start = rowOffsets[w];
+            for (int i = 0; i < length; i++) {
+                entries[i] = LongIntHashMap.pack(contexts.get(start + i), counts.get(start + i));
+            }
+            Arrays.sort(entries, 0, length);
+            for (int i = 0; i < length; i++) {
+                contexts.set(start + i, LongIntHashMap.wordOf(entries[i]));
+                counts.set(start + i, LongIntHashMap.contextOf(entries[i]));
+            }
+        }
+    }
+
+    /**
+     * @return the number of rows, one per word
+     */
+    public int rows() {
+        return rowOffsets.length - 1;
+    }
+
+    /**
+     * @return the number of non-zero entries over all rows
+     */
+    public long nnz() {
+        return rowOffsets[rowOffsets.length - 1];
+    }
+
+    /**
+     * @return the number of bytes the matrix takes up on the heap: the row offsets, and the entries unless
+     *         they are kept outside it
+     */
+    public long heapBytes() {
+        return (long) rowOffsets.length * Long.BYTES + contexts.heapBytes() + counts.heapBytes();
+    }
+
+    /**
+     * @return the number of bytes of entries kept outside the heap, in direct buffers or mapped pages
+     */
+    public long offHeapBytes() {
+        return contexts.offHeapBytes() + counts.offHeapBytes();
+    }
+
+    /**
+     * @param row the id of a word
+     * @return the number of distinct context words of the word
+     */
+    public int rowLength(int row) {
+        return (int) (rowOffsets[row + 1] - rowOffsets[row]);
+    }
+
+
+    /**
+
+     Builds the term frequency vector of a word from its row.
+     @param row the id of the word
+     @return a new vector of the word's context ids and co-occurrence counts
+     */
+    public SparseVector row(int row) {
+        int length = rowLength(row);
+        int[] ids = new int[length];
+        int[] rowCounts = new int[length];
+        contexts.get(rowOffsets[row], ids, 0, length);
+        counts.get(rowOffsets[row], rowCounts, 0, length);
+
+        double[] values = new double[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = rowCounts[i];
+        }
+        return new SparseVector(ids, values);
+    }
+
+
+    /**
+
+     Looks up how often a context word occurs around a word.
+     @param row the id of the word
+     @param context the id of the context word
+     @return the co-occurrence count, or 0 if they never co-occur
+     */
+    public int count(int row, int context) {
+        long low = rowOffsets[row];
+        long high = rowOffsets[row + 1] - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            int id = contexts.get(mid);
+            if (id < context) {
+                low = mid + 1;
+            } else if (id > context) {
+                high = mid - 1;
+            } else {
+                return counts.get(mid);
+            }
+        }
+        return 0;
+    }
+}
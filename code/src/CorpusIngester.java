@@ -0,0 +1,526 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the sentences file and counts word co-occurrences and document frequencies. With a pool, the
+ * file is split into byte ranges that each end on a line break, every range is counted by its own
+ * worker into its own CooccurrenceCounts, and the partial counts are merged in file order at the end.
+ * Since no line is split between two ranges, the merged counts are exactly those of reading the file
+ * line by line from the start.
+ *
+ * Files are read through a FileChannel into large direct buffers and decoded with an explicit charset,
+ * UTF-8 unless another is given. The sentences may also be gzip-compressed, which is recognized from the
+ * first bytes of the file, or read from standard input by passing STDIN as their path, where gzip is
+ * recognized the same way. Both of these can only be read from the start, so they are counted on the
+ * calling thread even if a pool is given.
+ */
+public class CorpusIngester {
+    // ranges are never made smaller than this, so small files are not split up for nothing
+    protected static final long MIN_CHUNK_BYTES = 1 << 20;
+    // number of ranges per pool thread, so workers that finish early can pick up more
+    protected static final int CHUNKS_PER_THREAD = 4;
+    protected static final int BUFFER_SIZE = 1 << 20;
+    // the path that stands for standard input
+    public static final String STDIN = "-";
+    // first bytes of a gzip member and of a zstd frame
+    protected static final byte[] GZIP_MAGIC = {0x1f, (byte) 0x8b};
+    protected static final byte[] ZSTD_MAGIC = {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd};
+
+    protected static final Metrics.Timer INGEST = Metrics.global().timer("ingest");
+    protected static final Metrics.Timer TOKENIZE = Metrics.global().timer("ingest.tokenize");
+    protected static final Metrics.Timer COUNT = Metrics.global().timer("ingest.count");
+    protected static final LongAdder BYTES = Metrics.global().counter("ingest.bytes");
+    protected static final LongAdder LINES = Metrics.global().counter("ingest.lines");
+    protected static final LongAdder TOKENS = Metrics.global().counter("ingest.tokens");
+
+    protected final Set<String> stopList; // words that are skipped
+    protected final Charset charset; // charset the sentences file is encoded in
+    protected final ContextWindow window; // which words count as a word's context
+
+    /**
+     * @param stopList the stop words to skip, in lower case
+     * @param charset the charset of the sentences file; must encode '\n' and '\r' as the single bytes 10 and 13
+     * @param window which words count as a word's context, and how much each one counts
+     */
+    public CorpusIngester(Set<String> stopList, Charset charset, ContextWindow window) {
+        this.stopList = stopList;
+        this.charset = charset;
+        this.window = window;
+    }
+
+    /**
+     * @param stopList the stop words to skip, in lower case
+     * @param charset the charset of the sentences file; must encode '\n' and '\r' as the single bytes 10 and 13
+     */
+    public CorpusIngester(Set<String> stopList, Charset charset) {
+        this(stopList, charset, ContextWindow.DEFAULT);
+    }
+
+    /**
+     * @param stopList the stop words to skip, in lower case
+     */
+    public CorpusIngester(Set<String> stopList) {
+        this(stopList, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+
+     Counts the whole sentences file.
+     @param sentences the path of the sentences file, one sentence per line, or STDIN
+     @param pool the pool to count ranges of the file on in parallel, or null to count it on this thread;
+                 compressed files and standard input are always counted on this thread
+     @return the counts for the whole file
+     @throws IOException if the file cannot be read
+     */
+    public CooccurrenceCounts ingest(String sentences, ForkJoinPool pool) throws IOException {
+        long started = INGEST.start();
+        try {
+            return count(sentences, pool);
+        } finally {
+            INGEST.stop(started);
+        }
+    }
+
+
+    /**
+
+     Counts the whole sentences file, as for ingest, without timing it.
+     */
+    protected CooccurrenceCounts count(String sentences, ForkJoinPool pool) throws IOException {
+        if (pool == null || !isPlainFile(sentences)) {
+            return countAll(sentences, new CooccurrenceCounts(window));
+        }
+        Path path = Paths.get(sentences);
+
+        // Split the file up into line-aligned ranges
+        long[] bounds;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunks = (int) Math.max(1, Math.min(pool.getParallelism() * CHUNKS_PER_THREAD, size / MIN_CHUNK_BYTES));
+            bounds = split(channel, chunks);
+        }
+
+        // Count every range on the pool, each worker with its own channel and counts
+        List<Callable<CooccurrenceCounts>> tasks = new ArrayList<>(bounds.length - 1);
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            long start = bounds[i];
+            long end = bounds[i + 1];
+            tasks.add(() -> {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    return countRange(channel, start, end);
+                }
+            });
+        }
+        List<Future<CooccurrenceCounts>> results = pool.invokeAll(tasks);
+
+        // Merge the partial counts in file order
+        CooccurrenceCounts counts = null;
+        for (Future<CooccurrenceCounts> result : results) {
+            CooccurrenceCounts partial;
+            try {
+                partial = result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading " + sentences);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Failed to read " + sentences, e.getCause());
+            }
+            if (counts == null) {
+                counts = partial;
+            } else {
+                counts.merge(partial);
+            }
+        }
+        return counts;
+    }
+
+
+    /**
+
+     Counts the whole sentences file on this thread, from the start.
+     @param sentences the path of the sentences file, one sentence per line, or STDIN
+     @param counts the counts to add the lines to
+     @return the counts
+     @throws IOException if the file cannot be read
+     */
+    protected CooccurrenceCounts countAll(String sentences, CooccurrenceCounts counts) throws IOException {
+        if (isPlainFile(sentences)) {
+            try (FileChannel channel = FileChannel.open(Paths.get(sentences), StandardOpenOption.READ)) {
+                return countRange(channel, 0, channel.size(), counts);
+            }
+        }
+        try (ReadableByteChannel in = open(sentences)) {
+            return countStream(in, counts);
+        }
+    }
+
+
+    /**
+
+     Determines if the sentences can be read at any offset: they are a file and not compressed.
+     @param sentences the path of the sentences file, or STDIN
+     @return true if the sentences are an uncompressed file
+     @throws IOException if the file cannot be read
+     */
+    public static boolean isPlainFile(String sentences) throws IOException {
+        if (sentences.equals(STDIN)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(sentences), StandardOpenOption.READ)) {
+            ByteBuffer head = readHead(channel);
+            return !startsWith(head, GZIP_MAGIC) && !startsWith(head, ZSTD_MAGIC);
+        }
+    }
+
+    /**
+     * @return the first bytes of a file, enough to tell the magic numbers apart, written up to the
+     *         buffer's position; the channel is left at the start of the file
+     */
+    protected static ByteBuffer readHead(FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(ZSTD_MAGIC.length);
+        while (head.hasRemaining() && channel.read(head) > 0) {
+            // keep reading until the buffer is full or the file ends
+        }
+        channel.position(0);
+        return head;
+    }
+
+    protected static boolean startsWith(ByteBuffer head, byte[] magic) {
+        if (head.position() < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (head.get(i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+
+     Opens the sentences for reading from the start, decompressing them if they are gzip-compressed,
+     whether they are a file or standard input.
+     @param sentences the path of the sentences file, or STDIN
+     @return the bytes of the sentences, uncompressed
+     @throws IOException if the file cannot be opened, or is compressed with zstd, which the JDK cannot
+                         decompress; such files can be piped through "zstd -dc" into standard input instead
+     */
+    public static ReadableByteChannel open(String sentences) throws IOException {
+        if (sentences.equals(STDIN)) {
+            return openStdin();
+        }
+        Path path = Paths.get(sentences);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer head = readHead(channel);
+            if (startsWith(head, ZSTD_MAGIC)) {
+                throw new IOException(sentences + " is zstd-compressed; decompress it into standard input with zstd -dc");
+            }
+            if (startsWith(head, GZIP_MAGIC)) {
+                return Channels.newChannel(new GZIPInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+            }
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    /**
+
+     Opens standard input, looking at its first bytes without consuming them to tell if it is compressed.
+     @return the bytes of standard input, uncompressed
+     @throws IOException if standard input cannot be read, or is compressed with zstd
+     */
+    protected static ReadableByteChannel openStdin() throws IOException {
+        BufferedInputStream in = new BufferedInputStream(System.in, BUFFER_SIZE);
+        in.mark(ZSTD_MAGIC.length);
+        ByteBuffer head = ByteBuffer.wrap(in.readNBytes(ZSTD_MAGIC.length));
+        head.position(head.limit());
+        in.reset();
+        if (startsWith(head, ZSTD_MAGIC)) {
+            throw new IOException("Standard input is zstd-compressed; decompress it with zstd -dc first");
+        }
+        if (startsWith(head, GZIP_MAGIC)) {
+            return Channels.newChannel(new GZIPInputStream(in, BUFFER_SIZE));
+        }
+        return Channels.newChannel(in);
+    }
+
+
+    /**
+
+     Counts a stream of sentences on this thread.
+     @param sentences the sentences, one per element
+     @return the counts for all of the sentences
+     */
+    public CooccurrenceCounts ingest(Stream<String> sentences) {
+        long started = INGEST.start();
+        CooccurrenceCounts counts = new CooccurrenceCounts(window);
+        Tokenizer tokenizer = new Tokenizer(stopList);
+        sentences.forEachOrdered(st -> processSentence(st, counts, tokenizer));
+        INGEST.stop(started);
+        return counts;
+    }
+
+
+    /**
+
+     Splits a file into ranges that each start at the beginning of a line.
+     @param channel the file to split
+     @param chunks the number of ranges to aim for
+     @return the start offsets of the ranges followed by the size of the file; there may be fewer ranges
+             than asked for if lines are long
+     @throws IOException if the file cannot be read
+     */
+    protected long[] split(FileChannel channel, int chunks) throws IOException {
+        long size = channel.size();
+        long[] bounds = new long[chunks + 1];
+        int n = 1;
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        for (int i = 1; i < chunks; i++) {
+            // Move each guess forward to just past the next line break
+            long pos = Math.max(size * i / chunks, bounds[n - 1]);
+            long bound = size;
+            scan:
+            while (pos < size) {
+                buffer.clear();
+                int read = channel.read(buffer, pos);
+                if (read <= 0) {
+                    break;
+                }
+                for (int b = 0; b < read; b++) {
+                    if (buffer.get(b) == '\n') {
+                        bound = pos + b + 1;
+                        break scan;
+                    }
+                }
+                pos += read;
+            }
+            if (bound > bounds[n - 1] && bound < size) {
+                bounds[n++] = bound;
+            }
+        }
+        bounds[n++] = size;
+        return Arrays.copyOf(bounds, n);
+    }
+
+
+    /**
+
+     Counts every line in a byte range of the sentences file. A line ends at "\n", "\r" or "\r\n",
+     the same as for BufferedReader.readLine.
+     @param channel the sentences file
+     @param start the offset of the first byte of the range, at the beginning of a line
+     @param end the offset one past the last byte of the range
+     @return the counts for the lines in the range
+     @throws IOException if the file cannot be read
+     */
+    protected CooccurrenceCounts countRange(FileChannel channel, long start, long end) throws IOException {
+        return countRange(channel, start, end, new CooccurrenceCounts(window));
+    }
+
+
+    /**
+
+     Counts every line in a byte range of the sentences file into existing counts.
+     @param channel the sentences file
+     @param start the offset of the first byte of the range, at the beginning of a line
+     @param end the offset one past the last byte of the range
+     @param counts the counts to add the lines to
+     @return the counts
+     @throws IOException if the file cannot be read
+     */
+    protected CooccurrenceCounts countRange(FileChannel channel, long start, long end, CooccurrenceCounts counts)
+            throws IOException {
+        LineCounter lines = new LineCounter(counts);
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(BUFFER_SIZE, Math.max(1, end - start)));
+        long pos = start;
+        while (pos < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - pos));
+            int read = channel.read(buffer, pos);
+            if (read <= 0) {
+                break;
+            }
+            pos += read;
+            BYTES.add(read);
+            lines.accept(buffer.flip());
+        }
+        return lines.finish();
+    }
+
+
+    /**
+
+     Counts every line of a stream, from where it is now to its end. Lines end the same as for countRange.
+     @param in the bytes of the sentences
+     @param counts the counts to add the lines to
+     @return the counts
+     @throws IOException if the stream cannot be read
+     */
+    protected CooccurrenceCounts countStream(ReadableByteChannel in, CooccurrenceCounts counts) throws IOException {
+        LineCounter lines = new LineCounter(counts);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        int read;
+        while ((read = in.read(buffer.clear())) >= 0) {
+            BYTES.add(read);
+            lines.accept(buffer.flip());
+        }
+        return lines.finish();
+    }
+
+
+    /**
+
+     Decodes the bytes of one line and adds the sentence to the counts. Malformed input is replaced
+     the same way new String(bytes, charset) does it.
+     @param line the bytes of the line, written up to its position; it is cleared for the next line
+     @param decoder the decoder for the sentences file's charset
+     @param chars a scratch buffer for the decoded line
+     @param counts the counts to add the sentence to
+     @param tokenizer the tokenizer to split the sentence with
+     @return the scratch buffer, replaced by a larger one if the line did not fit in it
+     */
+    protected CharBuffer processLine(ByteBuffer line, CharsetDecoder decoder, CharBuffer chars,
+                                     CooccurrenceCounts counts, Tokenizer tokenizer) {
+        long started = TOKENIZE.start();
+        line.flip();
+        int maxChars = (int) Math.ceil(line.remaining() * (double) decoder.maxCharsPerByte()) + 1;
+        if (chars.capacity() < maxChars) {
+            chars = CharBuffer.allocate(Math.max(maxChars, chars.capacity() * 2));
+        }
+        chars.clear();
+        decoder.reset();
+        decoder.decode(line, chars, true);
+        decoder.flush(chars);
+        line.clear();
+
+        int length = tokenizer.tokenize(chars.array(), 0, chars.position(), counts.vocabulary);
+        long tokenized = TOKENIZE.stop(started);
+        counts.addSentence(tokenizer.words(), length);
+        COUNT.stop(tokenized);
+        LINES.increment();
+        TOKENS.add(length);
+        return chars;
+    }
+
+
+    /**
+
+     Preprocesses one sentence and adds it to the counts: the sentence is lower cased and split on
+     whitespace, stop words are skipped and only the words made up exclusively of letters are kept.
+     @param st the sentence
+     @param counts the counts to add the sentence to
+     @param tokenizer the tokenizer to split the sentence with
+     */
+    protected void processSentence(String st, CooccurrenceCounts counts, Tokenizer tokenizer) {
+        long started = TOKENIZE.start();
+        int length = tokenizer.tokenize(st, counts.vocabulary);
+        long tokenized = TOKENIZE.stop(started);
+        counts.addSentence(tokenizer.words(), length);
+        COUNT.stop(tokenized);
+        LINES.increment();
+        TOKENS.add(length);
+    }
+
+
+    /**
+
+     Determines if a given string consists only of letters.
+     @param word the string to be checked
+     @return true if the string consists only of letters, false otherwise
+     */
+    public static boolean isAlpha(String word) {
+        return word.matches("[a-zA-Z]+");
+    }
+
+    /**
+     * Splits bytes into lines as they arrive and counts each line once it ends. A line ends at "\n", "\r"
+     * or "\r\n", the same as for BufferedReader.readLine, even when the two bytes of a "\r\n" arrive in
+     * different buffers.
+     */
+    protected class LineCounter {
+        protected final CooccurrenceCounts counts; // counts the lines are added to
+        protected final Tokenizer tokenizer = new Tokenizer(stopList);
+        protected final CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        protected ByteBuffer line = ByteBuffer.allocate(256); // bytes of the current line, read back in place when it ends
+        protected CharBuffer chars = CharBuffer.allocate(256); // decoded chars of the current line
+        protected boolean skipLineFeed; // the last byte was a '\r', so a following '\n' is part of the same break
+
+        protected LineCounter(CooccurrenceCounts counts) {
+            this.counts = counts;
+        }
+
+        /**
+         * Adds the bytes from the buffer's position up to its limit, counting every line that ends in them.
+         */
+        protected void accept(ByteBuffer buffer) {
+            for (int b = buffer.position(); b < buffer.limit(); b++) {
+                byte c = buffer.get(b);
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+                    if (c == '\n') {
+                        continue;
+                    }
+                }
+                if (c == '\n' || c == '\r') {
+                    chars = processLine(line, decoder, chars, counts, tokenizer);
+                    skipLineFeed = c == '\r';
+                } else {
+                    if (!line.hasRemaining()) {
+                        line.flip();
+                        line = ByteBuffer.allocate(line.capacity() * 2).put(line);
+                    }
+                    line.put(c);
+                }
+            }
+        }
+
+        /**
+         * Counts the last line, which may not end with a line break.
+         *
+         * @return the counts
+         */
+        protected CooccurrenceCounts finish() {
+            if (line.position() > 0) {
+                chars = processLine(line, decoder, chars, counts, tokenizer);
+            }
+            return counts;
+        }
+    }
+}
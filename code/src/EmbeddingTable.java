@@ -0,0 +1,168 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Dense, fixed-size embeddings of every word, made by projecting the words' weighted, normalized
+ * co-occurrence vectors down to a small number of dimensions with a sparse random projection. Each
+ * context word is sent to NONZEROS randomly chosen dimensions with random signs, which preserves the
+ * distances between the vectors approximately (the Johnson-Lindenstrauss lemma) whatever the size of the
+ * vocabulary. The projected vectors are normalized again, so the measures behave as on the sparse vectors.
+ *
+ * All of the embeddings are kept in one contiguous float array, word after word, so scoring a target word
+ * against the whole vocabulary is a single pass over memory, with the SIMD kernels of VectorKernels where
+ * the JVM allows them. Scores
+ * on embeddings are approximations of the scores on the sparse vectors; the more dimensions, the closer.
+ *
+ * Like the index, a table belongs to one snapshot of the model.
+ */
+public class EmbeddingTable {
+    public static final int DEFAULT_DIMENSIONS = 256;
+    public static final long DEFAULT_SEED = 0xE3BEDL;
+    // number of dimensions each context word is projected onto
+    protected static final int NONZEROS = 4;
+
+    protected final ModelSnapshot model; // the snapshot the embeddings were made from
+    protected final Weighting weighting; // the weighting of the projected vectors
+    protected final int dimensions;
+    protected final float[] embeddings; // the embedding of word id i is at [i * dimensions, (i + 1) * dimensions)
+
+    protected EmbeddingTable(ModelSnapshot model, Weighting weighting, int dimensions, float[] embeddings) {
+        this.model = model;
+        this.weighting = weighting;
+        this.dimensions = dimensions;
+        this.embeddings = embeddings;
+    }
+
+
+    /**
+
+     Projects the normalized vectors of every word in a snapshot to embeddings.
+     @param model the snapshot to project
+     @param weighting the weighting of the vectors to project
+     @param dimensions the number of dimensions of the embeddings
+     @param seed the seed of the random projection
+     @param pool the pool to project the words on in parallel, or null to project them on this thread
+     @return the table of embeddings
+     @throws IllegalArgumentException if dimensions is not positive or the table would not fit in an array
+     */
+    public static EmbeddingTable project(ModelSnapshot model, Weighting weighting, int dimensions, long seed,
+                                         ForkJoinPool pool) {
+        if (dimensions < 1) {
+            throw new IllegalArgumentException("There must be at least one dimension");
+        }
+        int words = model.vocabulary.size();
+        if ((long) words * dimensions > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException(words + " words of " + dimensions + " dimensions do not fit in one table");
+        }
+        float[] embeddings = new float[words * dimensions];
+        float scale = (float) (1 / Math.sqrt(NONZEROS));
+
+        IntStream ids = IntStream.range(0, words);
+        Runnable projectAll = () -> (pool == null ? ids : ids.parallel()).forEach(id -> {
+            SparseVector vec = model.vectors.get(id, weighting);
+            int offset = id * dimensions;
+            for (int i = 0; i < vec.size(); i++) {
+                float value = (float) vec.value(i) * scale;
+                long h = vec.id(i) * 0x9E3779B97F4A7C15L + seed;
+                for (int n = 0; n < NONZEROS; n++) {
+                    h = LshIndex.mix(h + n);
+                    int dimension = (int) ((h >>> 1) % dimensions);
+                    embeddings[offset + dimension] += (h & 1) == 0 ? value : -value;
+                }
+            }
+            normalize(embeddings, offset, dimensions);
+        });
+        if (pool == null) {
+            projectAll.run();
+        } else {
+            pool.submit(projectAll).join();
+        }
+        return new EmbeddingTable(model, weighting, dimensions, embeddings);
+    }
+
+    protected static void normalize(float[] embeddings, int offset, int dimensions) {
+        double sumOfSquares = 0;
+        for (int k = 0; k < dimensions; k++) {
+            sumOfSquares += embeddings[offset + k] * embeddings[offset + k];
+        }
+        if (sumOfSquares != 0) {
+            float length = (float) Math.sqrt(sumOfSquares);
+            for (int k = 0; k < dimensions; k++) {
+                embeddings[offset + k] /= length;
+            }
+        }
+    }
+
+
+    /**
+
+     Finds the most similar words to the target word of a query by comparing embeddings.
+     @param query the query, which must use this table's weighting
+     @return the most similar words, most similar first, with their scores on the embeddings
+     @throws IllegalArgumentException if the target word is not in the vocabulary or the query uses another weighting
+     */
+    public List<Neighbor> topK(Query query) {
+        if (query.weighting() != weighting) {
+            throw new IllegalArgumentException("Embeddings are of " + weighting + " vectors, not " + query.weighting());
+        }
+        int targetId = model.vocabulary.id(query.word());
+        if (targetId < 0) {
+            throw new IllegalArgumentException("Unknown target word: " + query.word());
+        }
+
+        TopK top = new TopK(query.k(), query.measure());
+        int words = model.vocabulary.size();
+        for (int id = 0; id < words; id++) {
+            if (id != targetId) {
+                top.offer(score(query.measure(), targetId, id), id);
+            }
+        }
+
+        double[] scores = new double[top.size()];
+        int[] ids = new int[top.size()];
+        int n = top.drainSorted(scores, ids);
+        List<Neighbor> neighbors = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            neighbors.add(new Neighbor(model.vocabulary.word(ids[i]), ids[i], scores[i]));
+        }
+        return neighbors;
+    }
+
+
+    /**
+
+     Compares the embeddings of two words.
+     @param measure the measure to compare them with
+     @param id1 the id of the first word
+     @param id2 the id of the second word
+     @return the distance or similarity between the two embeddings
+     */
+    public double score(Measure measure, int id1, int id2) {
+        // The embeddings are unit length (or all zeros), so the cosine is the dot product
+        return VectorKernels.DEFAULT.scoreNormalized(measure, embeddings, id1 * dimensions, embeddings, id2 * dimensions,
+                dimensions);
+    }
+
+    /**
+     * @return the weighting of the projected vectors
+     */
+    public Weighting weighting() {
+        return weighting;
+    }
+
+    /**
+     * @return the number of dimensions of the embeddings
+     */
+    public int dimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return the number of bytes the embeddings take up
+     */
+    public long memoryBytes() {
+        return (long) embeddings.length * Float.BYTES;
+    }
+}
@@ -0,0 +1,202 @@
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from non-negative long keys to int values, stored in two primitive
+ * arrays so that counting does not box or allocate per entry. Used to count (word id, context id)
+ * pairs, packed into one long with pack(), while reading the sentences file.
+ */
+public class LongIntHashMap {
+    protected static final long EMPTY = -1L; // marks an unused slot; keys must never be negative
+    protected static final float LOAD_FACTOR = 0.6f;
+    // largest power of two an array can be long, so the most slots the map can have
+    protected static final int MAX_CAPACITY = 1 << 30;
+
+    protected long[] keys;
+    protected int[] values;
+    protected int size; // number of keys in the map
+    protected int mask; // capacity - 1, the capacity is always a power of two
+    protected int resizeAt; // size at which the arrays are doubled
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize the number of keys the map should hold without growing; sizes past what the map can
+     *                     hold at all start it at its largest capacity
+     */
+    public LongIntHashMap(int expectedSize) {
+        long slots = Math.min(MAX_CAPACITY, Math.max(4, (long) Math.ceil(expectedSize / LOAD_FACTOR)));
+        allocate(Integer.highestOneBit((int) slots - 1) << 1);
+    }
+
+    /**
+
+     Packs a (word id, context id) pair into one key.
+     @param wordId the id of the word, must not be negative
+     @param contextId the id of the context word, must not be negative
+     @return the packed key
+     */
+    public static long pack(int wordId, int contextId) {
+        return ((long) wordId << 32) | (contextId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param key a key made by pack()
+     * @return the word id of the pair
+     */
+    public static int wordOf(long key) {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * @param key a key made by pack()
+     * @return the context id of the pair
+     */
+    public static int contextOf(long key) {
+        return (int) key;
+    }
+
+
+    /**
+
+     Adds a delta to the value of a key, inserting the key with the delta as its value if it is not present.
+     @param key the key, must not be negative
+     @param delta the amount to add
+     @return the new value of the key
+     @throws IllegalStateException if the key is new and the map already holds as many keys as it can
+     */
+    public int addTo(long key, int delta) {
+        int slot = slot(key);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                return values[slot] += delta;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = delta;
+        if (++size >= resizeAt) {
+            if (keys.length >= MAX_CAPACITY) {
+                throw new IllegalStateException("Cannot count more than " + size + " distinct pairs in memory;"
+                        + " build the model out of core with SpillingIngester (Similarity --external) instead");
+            }
+            allocate(keys.length << 1);
+        }
+        return delta;
+    }
+
+
+    /**
+
+     Looks up the value of a key.
+     @param key the key to look up
+     @return the value of the key, or 0 if it is not present
+     */
+    public int get(long key) {
+        int slot = slot(key);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+
+     Removes every key. The arrays keep their capacity, so refilling the map up to the same size does
+     not allocate again.
+     */
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * @return the number of keys in the map
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of slots, occupied or not
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+
+    /**
+
+     Finds the next occupied slot, for iterating over the entries:
+     for (int s = map.nextSlot(0); s >= 0; s = map.nextSlot(s + 1)) { map.keyAt(s); map.valueAt(s); }
+     @param from the slot to start looking at
+     @return the first occupied slot at or after from, or -1 if there is none
+     */
+    public int nextSlot(int from) {
+        for (int slot = from; slot < keys.length; slot++) {
+            if (keys[slot] != EMPTY) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public int valueAt(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * @return an estimate of the bytes taken up by the map's arrays
+     */
+    public long memoryBytes() {
+        return (long) keys.length * (Long.BYTES + Integer.BYTES);
+    }
+
+
+    /**
+
+     Replaces the arrays with empty ones of the given capacity and re-inserts the existing entries.
+     @param capacity the new number of slots, a power of two
+     */
+    protected void allocate(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+
+        if (oldKeys != null) {
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int slot = slot(oldKeys[i]);
+                    while (keys[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    protected int slot(long key) {
+        // finalizer of MurmurHash3, so nearby ids spread over the whole table
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+}
@@ -0,0 +1,395 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * An approximate nearest-neighbour index over the normalized vectors of one weighting scheme, using
+ * random-projection (SimHash) locality-sensitive hashing. Each of a number of tables hashes every word to
+ * a signature of a number of bits, one bit per random hyperplane: the bit is set if the word's vector lies
+ * on the positive side of the hyperplane. Words whose vectors point the same way are likely to share a
+ * signature, so a query only has to score the words in its own bucket of each table instead of the whole
+ * vocabulary. The candidates found are then scored exactly, so the scores returned are the exact ones and
+ * only the recall is approximate.
+ *
+ * The hyperplanes are never stored: the +1/-1 component of each hyperplane along each context word is
+ * derived from a hash of the seed, the table and the context id, with one 64-bit hash giving that component
+ * for up to 64 hyperplanes of a table at once.
+ *
+ * Recall is traded for latency by the number of tables, the number of bits per signature, and at query
+ * time the number of probes: each probe also looks in the bucket that differs from the query's signature in
+ * one more of its least certain bits. Hyperplanes measure angles, so the index suits COSINE best, but since
+ * the vectors are normalized it finds good candidates for EUCLIDEAN as well, and to a lesser degree for L1.
+ *
+ * The index is built for one snapshot of the model and only answers queries for that snapshot. It can
+ * be saved to a file and loaded back for the same model, for example one loaded from a ModelFile.
+ */
+public class LshIndex {
+    protected static final long MAGIC = 0x53494D4C5348495AL; // "SIMLSHIZ"
+    protected static final int VERSION = 1;
+    public static final int DEFAULT_TABLES = 32;
+    public static final int DEFAULT_BITS = 10;
+    public static final int DEFAULT_PROBES = 4;
+    public static final long DEFAULT_SEED = 0x5EEDL;
+
+    protected final ModelSnapshot model; // the snapshot the index was built for
+    protected final Weighting weighting; // the weighting of the indexed vectors
+    protected final int tables; // number of hash tables
+    protected final int bits; // number of bits in each signature, at most 32
+    protected final long seed; // seed of the random hyperplanes
+    protected final long[][] buckets; // per table, (signature, word id) pairs packed into longs and sorted
+
+    protected LshIndex(ModelSnapshot model, Weighting weighting, int tables, int bits, long seed, long[][] buckets) {
+        this.model = model;
+        this.weighting = weighting;
+        this.tables = tables;
+        this.bits = bits;
+        this.seed = seed;
+        this.buckets = buckets;
+    }
+
+
+    /**
+
+     Builds an index over the normalized vectors of every word in a snapshot.
+     @param model the snapshot to index
+     @param weighting the weighting of the vectors to index
+     @param tables the number of hash tables; more tables find more of the true neighbours but take longer
+     @param bits the number of bits in each signature; more bits make smaller buckets and faster but less
+                 complete queries
+     @param seed the seed of the random hyperplanes
+     @param pool the pool to hash the words on in parallel, or null to hash them on this thread
+     @return the index
+     @throws IllegalArgumentException if tables is not positive or bits is not between 1 and 32
+     */
+    public static LshIndex build(ModelSnapshot model, Weighting weighting, int tables, int bits, long seed,
+                                 ForkJoinPool pool) {
+        if (tables < 1) {
+            throw new IllegalArgumentException("There must be at least one table");
+        }
+        if (bits < 1 || bits > 32) {
+            throw new IllegalArgumentException("Signatures must have between 1 and 32 bits");
+        }
+        int words = model.vocabulary.size();
+        long[][] buckets = new long[tables][words];
+        LshIndex index = new LshIndex(model, weighting, tables, bits, seed, buckets);
+
+        // Hash every word into every table, then sort each table by signature
+        IntStream ids = IntStream.range(0, words);
+        Runnable hashAll = () -> (pool == null ? ids : ids.parallel()).forEach(id -> {
+            double[] projections = new double[bits];
+            SparseVector vec = model.vectors.get(id, weighting);
+            for (int t = 0; t < tables; t++) {
+                buckets[t][id] = ((long) index.signature(vec, t, projections) << 32) | id;
+            }
+        });
+        if (pool == null) {
+            hashAll.run();
+        } else {
+            pool.submit(hashAll).join();
+        }
+        for (long[] table : buckets) {
+            Arrays.sort(table);
+        }
+        return index;
+    }
+
+
+    /**
+
+     Finds the most similar words to the target word of a query among the words that share a bucket
+     with it, and scores them exactly.
+     @param query the query, which must use this index's weighting
+     @param probes the number of extra buckets to look in per table, from 0 up to the number of bits
+     @return the most similar words found, most similar first
+     @throws IllegalArgumentException if the target word is not in the vocabulary or the query uses another weighting
+     */
+    public List<Neighbor> query(Query query, int probes) {
+        if (query.weighting() != weighting) {
+            throw new IllegalArgumentException("Index is for " + weighting + " vectors, not " + query.weighting());
+        }
+        int targetId = model.vocabulary.id(query.word());
+        if (targetId < 0) {
+            throw new IllegalArgumentException("Unknown target word: " + query.word());
+        }
+        SparseVector target = model.vectors.get(targetId, weighting);
+        double targetLength = SparseVector.l2Length(target);
+        probes = Math.max(0, Math.min(probes, bits));
+
+        BitSet seen = new BitSet(model.vocabulary.size());
+        seen.set(targetId);
+        TopK top = new TopK(query.k(), query.measure());
+        double[] projections = new double[bits];
+        Integer[] order = new Integer[bits];
+
+        for (int t = 0; t < tables; t++) {
+            int signature = signature(target, t, projections);
+            score(t, signature, query.measure(), target, targetLength, seen, top);
+            if (probes == 0) {
+                continue;
+            }
+
+            // Probe the buckets one flipped bit away, least certain bits first
+            for (int b = 0; b < bits; b++) {
+                order[b] = b;
+            }
+            Arrays.sort(order, (b1, b2) -> Double.compare(Math.abs(projections[b1]), Math.abs(projections[b2])));
+            for (int p = 0; p < probes; p++) {
+                score(t, signature ^ (1 << order[p]), query.measure(), target, targetLength, seen, top);
+            }
+        }
+
+        double[] scores = new double[top.size()];
+        int[] ids = new int[top.size()];
+        int n = top.drainSorted(scores, ids);
+        List<Neighbor> neighbors = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            neighbors.add(new Neighbor(model.vocabulary.word(ids[i]), ids[i], scores[i]));
+        }
+        return neighbors;
+    }
+
+
+    /**
+
+     Scores the words of one bucket that have not been scored yet.
+     @param table the table of the bucket
+     @param signature the signature of the bucket
+     */
+    protected void score(int table, int signature, Measure measure, SparseVector target, double targetLength, BitSet seen,
+                         TopK top) {
+        long[] entries = buckets[table];
+        long first = (long) signature << 32;
+        int i = Arrays.binarySearch(entries, first);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        for (; i < entries.length && (int) (entries[i] >>> 32) == signature; i++) {
+            int id = (int) entries[i];
+            if (!seen.get(id)) {
+                seen.set(id);
+                SparseVector candidate = model.vectors.get(id, weighting);
+                double score = measure.usesLengths()
+                        ? measure.score(target, targetLength, candidate, SparseVector.l2Length(candidate))
+                        : measure.score(target, candidate);
+                top.offer(score, id);
+            }
+        }
+    }
+
+
+    /**
+
+     Hashes a vector to its signature in one table.
+     @param vec the vector to hash
+     @param table the table to hash it for
+     @param projections receives the vector's projection on each of the table's hyperplanes
+     @return the signature, with bit b set if the projection on hyperplane b is positive
+     */
+    protected int signature(SparseVector vec, int table, double[] projections) {
+        Arrays.fill(projections, 0.0);
+        long tableSeed = mix(seed + table * 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < vec.size(); i++) {
+            long signs = mix(tableSeed ^ vec.id(i)); // bit b is the sign of hyperplane b along this context
+            double value = vec.value(i);
+            for (int b = 0; b < bits; b++) {
+                projections[b] += ((signs >>> b) & 1) == 0 ? value : -value;
+            }
+        }
+        int signature = 0;
+        for (int b = 0; b < bits; b++) {
+            if (projections[b] > 0) {
+                signature |= 1 << b;
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * @return a well-mixed 64-bit hash of the value (the murmur3 finalizer)
+     */
+    protected static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+
+    /**
+
+     Measures the recall@k of the index: the fraction of the exact k most similar words, as found by
+     Similarity.topK, that the index also returns.
+     @param similarity the model to find the exact results with; must be on this index's snapshot
+     @param queries the queries to measure, all with this index's weighting
+     @param probes the number of probes to query the index with
+     @return the mean recall over the queries, from 0 to 1
+     */
+    public double recall(Similarity similarity, List<Query> queries, int probes) {
+        double total = 0;
+        List<List<Neighbor>> exact = similarity.topK(queries);
+        for (int q = 0; q < queries.size(); q++) {
+            HashSet<Integer> found = new HashSet<>();
+            for (Neighbor neighbor : query(queries.get(q), probes)) {
+                found.add(neighbor.id());
+            }
+            int hits = 0;
+            for (Neighbor neighbor : exact.get(q)) {
+                if (found.contains(neighbor.id())) {
+                    hits++;
+                }
+            }
+            total += exact.get(q).isEmpty() ? 1 : hits / (double) exact.get(q).size();
+        }
+        return queries.isEmpty() ? 1 : total / queries.size();
+    }
+
+
+    /**
+
+     Writes the index to a file. The hyperplanes are rebuilt from the seed when it is loaded.
+     @param indexFile the path of the file to write
+     @throws IOException if the file cannot be written
+     */
+    public void save(String indexFile) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(Paths.get(indexFile)), 1 << 16))) {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(weighting.ordinal());
+            out.writeInt(tables);
+            out.writeInt(bits);
+            out.writeLong(seed);
+            // The model the index belongs to, to catch loading it for another one
+            out.writeInt(model.vocabulary.size());
+            out.writeLong(model.matrix.nnz());
+            out.writeLong(model.numSentences);
+            for (long[] table : buckets) {
+                for (long entry : table) {
+                    out.writeLong(entry);
+                }
+            }
+        }
+    }
+
+
+    /**
+
+     Reads an index written by save.
+     @param indexFile the path of the file to read
+     @param model the snapshot the index was built for
+     @return the index
+     @throws IOException if the file cannot be read, is not an index file of this version, is truncated
+                         or corrupt, or was built for a different model
+     */
+    public static LshIndex load(String indexFile, ModelSnapshot model) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(Paths.get(indexFile)), 1 << 16))) {
+            if (in.readLong() != MAGIC) {
+                throw new IOException(indexFile + " is not an index file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported index file version " + version + " in " + indexFile);
+            }
+            int ordinal = in.readInt();
+            int tables = in.readInt();
+            int bits = in.readInt();
+            if (ordinal < 0 || ordinal >= Weighting.values().length || tables < 1 || bits < 1 || bits > 32) {
+                throw new IOException("Corrupt index file " + indexFile);
+            }
+            Weighting weighting = Weighting.values()[ordinal];
+            long seed = in.readLong();
+            int words = in.readInt();
+            if (words != model.vocabulary.size() || in.readLong() != model.matrix.nnz()
+                    || in.readLong() != model.numSentences) {
+                throw new IOException(indexFile + " was built for a different model");
+            }
+
+            long[][] buckets = new long[tables][words];
+            for (long[] table : buckets) {
+                for (int i = 0; i < words; i++) {
+                    table[i] = in.readLong();
+                }
+            }
+            return new LshIndex(model, weighting, tables, bits, seed, buckets);
+        }
+    }
+
+    /**
+     * @return the weighting of the indexed vectors
+     */
+    public Weighting weighting() {
+        return weighting;
+    }
+
+
+    /**
+
+     Builds a model and an index for each weighting, runs the target words of an input file against both
+     the exact search and the index, and prints the recall@10 and the mean query time of each.
+
+     Usage: LshIndex <stoplist> <sentences> <input> [tables] [bits] [probes]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || args.length > 6) {
+            System.err.println("Usage: LshIndex <stoplist> <sentences> <input> [tables] [bits] [probes]");
+            System.exit(1);
+        }
+        int tables = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_TABLES;
+        int bits = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_BITS;
+        int probes = args.length > 5 ? Integer.parseInt(args[5]) : DEFAULT_PROBES;
+
+        Similarity similarity = Similarity.fromCorpus(args[0], args[1], Similarity.DEFAULT_VECTOR_CACHE_BYTES, null);
+        // Measuring recall runs every exact query first, so cached results would make the exact search look free
+        similarity.setResultCacheSize(0);
+        similarity.readTargets(args[2]);
+        ModelSnapshot model = similarity.snapshot;
+
+        for (Weighting weighting : Weighting.values()) {
+            List<Query> queries = new ArrayList<>();
+            for (String targetWord : similarity.targetInfo.keySet()) {
+                ArrayList<String> infoList = similarity.targetInfo.get(targetWord);
+                Query query = new Query(targetWord, infoList.get(0), infoList.get(1), Similarity.DEFAULT_K);
+                if (query.weighting() == weighting && model.vocabulary.contains(targetWord)) {
+                    queries.add(query);
+                }
+            }
+            if (queries.isEmpty()) {
+                continue;
+            }
+
+            long start = System.nanoTime();
+            LshIndex index = build(model, weighting, tables, bits, DEFAULT_SEED, null);
+            long built = System.nanoTime();
+            double recall = index.recall(similarity, queries, probes);
+
+            // Time both searches with the vectors already built, so only the searching is compared
+            long exactStart = System.nanoTime();
+            for (Query query : queries) {
+                similarity.topK(query);
+            }
+            long exactEnd = System.nanoTime();
+            for (Query query : queries) {
+                index.query(query, probes);
+            }
+            long indexEnd = System.nanoTime();
+
+            System.out.printf("%s: %d queries, index built in %.1f ms, recall@%d %.3f, exact %.3f ms/query, index %.3f ms/query%n",
+                    weighting, queries.size(), (built - start) / 1e6, Similarity.DEFAULT_K, recall,
+                    (exactEnd - exactStart) / 1e6 / queries.size(), (indexEnd - exactEnd) / 1e6 / queries.size());
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * The measures that can be used to compare two words' normalized co-occurrence vectors. Besides scoring
+ * one pair of vectors, each measure has its own loop for scoring a target against a range of words, which
+ * calls its distance function directly so that the loop is compiled for that measure alone.
+ */
+public enum Measure {
+    L1(false) { // L1 distance - smaller is more similar
+        @Override
+        public double score(SparseVector vector1, SparseVector vector2) {
+            return SparseVector.l1Distance(vector1, vector2);
+        }
+
+        @Override
+        public void scan(SparseVector target, int targetId, VectorStore vectors, Weighting weighting, int from, int to,
+                         TopK top) {
+            for (int id = from; id < to; id++) {
+                if (id != targetId) {
+                    top.offer(SparseVector.l1Distance(target, vectors.get(id, weighting)), id);
+                }
+            }
+        }
+    },
+    EUCLIDEAN(false) { // Euclidean distance - smaller is more similar
+        @Override
+        public double score(SparseVector vector1, SparseVector vector2) {
+            return SparseVector.euclideanDistance(vector1, vector2);
+        }
+
+        @Override
+        public void scan(SparseVector target, int targetId, VectorStore vectors, Weighting weighting, int from, int to,
+                         TopK top) {
+            for (int id = from; id < to; id++) {
+                if (id != targetId) {
+                    top.offer(SparseVector.euclideanDistance(target, vectors.get(id, weighting)), id);
+                }
+            }
+        }
+    },
+    COSINE(true) { // cosine similarity - larger is more similar
+        @Override
+        public double score(SparseVector vector1, SparseVector vector2) {
+            return SparseVector.cosine(vector1, vector2);
+        }
+
+        @Override
+        public double score(SparseVector vector1, double length1, SparseVector vector2, double length2) {
+            return SparseVector.cosine(vector1, length1, vector2, length2);
+        }
+
+        @Override
+        public boolean usesLengths() {
+            return true;
+        }
+
+        @Override
+        public void scan(SparseVector target, int targetId, VectorStore vectors, Weighting weighting, int from, int to,
+                         TopK top) {
+            double targetLength = SparseVector.l2Length(target);
+            for (int id = from; id < to; id++) {
+                if (id != targetId) {
+                    SparseVector candidate = vectors.get(id, weighting);
+                    top.offer(SparseVector.cosine(target, targetLength, candidate, SparseVector.l2Length(candidate)), id);
+                }
+            }
+        }
+    };
+
+    private final boolean higherIsBetter;
+
+    Measure(boolean higherIsBetter) {
+        this.higherIsBetter = higherIsBetter;
+    }
+
+    /**
+     * @return true if a higher score means the words are more similar, false if a lower one does
+     */
+    public boolean higherIsBetter() {
+        return higherIsBetter;
+    }
+
+    /**
+
+     Compares two vectors with this measure.
+     @param vector1 the first vector
+     @param vector2 the second vector
+     @return the distance or similarity between the two vectors
+     */
+    public abstract double score(SparseVector vector1, SparseVector vector2);
+
+    /**
+
+     Compares two vectors whose L2 lengths are already known, without computing them again. Gives
+     exactly the same score as score(vector1, vector2).
+     @param vector1 the first vector
+     @param length1 the L2 length of the first vector, from SparseVector.l2Length
+     @param vector2 the second vector
+     @param length2 the L2 length of the second vector, from SparseVector.l2Length
+     @return the distance or similarity between the two vectors
+     */
+    public double score(SparseVector vector1, double length1, SparseVector vector2, double length2) {
+        return score(vector1, vector2);
+    }
+
+    /**
+
+     Scores every word in a range of ids against a target, giving the same scores as score.
+     @param target the target's vector
+     @param targetId the id of the target word, which is skipped
+     @param vectors the store to look up each word's vector in
+     @param weighting the weighting of the vectors to look up
+     @param from the first id to score
+     @param to one past the last id to score
+     @param top where each score is offered
+     */
+    public abstract void scan(SparseVector target, int targetId, VectorStore vectors, Weighting weighting, int from,
+                              int to, TopK top);
+
+    /**
+     * @return true if this measure needs the L2 lengths of the vectors, so callers comparing one vector
+     *         many times should compute its length once and pass it to score
+     */
+    public boolean usesLengths() {
+        return false;
+    }
+
+    /**
+
+     Parses the <sim_measure> column of the input file.
+     @param simMeasure the similarity measure string from the input file
+     @return the matching Measure
+     @throws IllegalArgumentException if the string does not name a measure
+     */
+    public static Measure fromString(String simMeasure) {
+        for (Measure measure : values()) {
+            if (measure.name().equals(simMeasure)) {
+                return measure;
+            }
+        }
+        throw new IllegalArgumentException("Unknown similarity measure: " + simMeasure);
+    }
+}
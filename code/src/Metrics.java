@@ -0,0 +1,323 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters, latency timers and gauges for the stages of building a model and answering queries. The
+ * stages record into the process-wide registry returned by global():
+ *
+ *     stoplist.load                  timer, reading the stop list
+ *     ingest                         timer, counting a whole sentences file or stream
+ *     ingest.tokenize, ingest.count  timers, splitting one line into words and counting its co-occurrences
+ *     ingest.bytes, ingest.lines, ingest.tokens
+ *                                    counters of what was read
+ *     model.idf                      timer, computing the idf vector of a snapshot
+ *     model.marginals                timer, summing the rows and columns of a snapshot's matrix for PPMI
+ *     vectors.build                  timer, building one normalized vector
+ *     query.latency                  timer, one call of Similarity.topK, including result cache lookups
+ *     query.score                    timer, scoring the candidates of a batch of queries that missed the cache
+ *     query.rank                     timer, sorting one query's best words into a result
+ *     query.count                    counter of queries scored, which leaves out those answered from the cache
+ *
+ * Similarity adds gauges of the size and memory footprint of the most recently created model. Timers
+ * keep a histogram with eight buckets per power of two of nanoseconds, so percentiles are accurate to
+ * within about 10%. Recording is lock-free and spreads contended updates over LongAdder cells, so it is
+ * cheap enough to do for every line of a corpus.
+ *
+ * The registry can be read over JMX, where it is registered as OBJECT_NAME, or written out as JSON lines
+ * with one object per metric.
+ */
+public class Metrics implements MetricsMXBean {
+    public static final String OBJECT_NAME = "Similarity:type=Metrics";
+    protected static final Metrics GLOBAL = new Metrics();
+
+    protected final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    protected final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+    protected final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * @return the registry every stage records into
+     */
+    public static Metrics global() {
+        return GLOBAL;
+    }
+
+    /**
+     * @return the counter of the given name, created at 0 if it does not exist yet
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * @return the timer of the given name, created empty if it does not exist yet
+     */
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, n -> new Timer());
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge of the same name.
+     *
+     * @param name the name of the gauge
+     * @param value reads the gauge's current value
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+
+    /**
+
+     Sets every counter and timer back to zero. Gauges are kept, since they read their values live.
+     */
+    @Override
+    public void reset() {
+        for (LongAdder counter : counters.values()) {
+            counter.reset();
+        }
+        for (Timer timer : timers.values()) {
+            timer.reset();
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getTimerCounts() {
+        Map<String, Long> values = new TreeMap<>();
+        timers.forEach((name, timer) -> values.put(name, timer.count()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getTimerMeanMillis() {
+        Map<String, Double> values = new TreeMap<>();
+        timers.forEach((name, timer) -> values.put(name, timer.meanNanos() / 1e6));
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getTimerP99Millis() {
+        Map<String, Double> values = new TreeMap<>();
+        timers.forEach((name, timer) -> values.put(name, timer.percentileNanos(0.99) / 1e6));
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getTimerMaxMillis() {
+        Map<String, Double> values = new TreeMap<>();
+        timers.forEach((name, timer) -> values.put(name, timer.maxNanos() / 1e6));
+        return values;
+    }
+
+    /**
+     * @return the number of tokens counted per second of ingestion, over every ingestion so far
+     */
+    @Override
+    public double getTokensPerSecond() {
+        long nanos = timer("ingest").totalNanos();
+        return nanos == 0 ? 0 : counter("ingest.tokens").sum() / (nanos / 1e9);
+    }
+
+
+    /**
+
+     Registers the registry with the platform MBean server as OBJECT_NAME, unless it already is.
+     @throws IllegalStateException if the registry cannot be registered
+     */
+    public void registerMBean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register " + OBJECT_NAME, e);
+        }
+    }
+
+
+    /**
+
+     Writes every metric as one JSON object per line, sorted by name within each type:
+
+         {"type":"counter","name":...,"value":...}
+         {"type":"gauge","name":...,"value":...}
+         {"type":"timer","name":...,"count":...,"totalMs":...,"meanMs":...,"p50Ms":...,"p90Ms":...,"p99Ms":...,"maxMs":...}
+         {"type":"rate","name":"ingest.tokensPerSecond","value":...}
+
+     @param out the writer to write to; it is flushed but not closed
+     */
+    public void writeJsonLines(Writer out) {
+        PrintWriter writer = new PrintWriter(out);
+        getCounters().forEach((name, value) -> writer.println(
+                "{\"type\":\"counter\",\"name\":\"" + name + "\",\"value\":" + value + "}"));
+        getGauges().forEach((name, value) -> writer.println(
+                "{\"type\":\"gauge\",\"name\":\"" + name + "\",\"value\":" + value + "}"));
+        new TreeMap<>(timers).forEach((name, timer) -> writer.println(
+                "{\"type\":\"timer\",\"name\":\"" + name + "\",\"count\":" + timer.count()
+                        + ",\"totalMs\":" + timer.totalNanos() / 1e6 + ",\"meanMs\":" + timer.meanNanos() / 1e6
+                        + ",\"p50Ms\":" + timer.percentileNanos(0.5) / 1e6
+                        + ",\"p90Ms\":" + timer.percentileNanos(0.9) / 1e6
+                        + ",\"p99Ms\":" + timer.percentileNanos(0.99) / 1e6
+                        + ",\"maxMs\":" + timer.maxNanos() / 1e6 + "}"));
+        writer.println("{\"type\":\"rate\",\"name\":\"ingest.tokensPerSecond\",\"value\":" + getTokensPerSecond() + "}");
+        writer.flush();
+    }
+
+
+    /**
+
+     Writes every metric as JSON lines to a file, replacing the file if it exists.
+     @param file the path of the file
+     @throws IOException if the file cannot be written
+     */
+    public void writeJsonLines(String file) throws IOException {
+        try (Writer out = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8)) {
+            writeJsonLines(out);
+        }
+    }
+
+    /**
+     * A latency histogram. Durations are bucketed by their power of two and the next three bits below it.
+     */
+    public static class Timer {
+        protected static final int SUB_BITS = 3;
+        protected static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        protected final LongAdder[] buckets = new LongAdder[64 * SUB_BUCKETS];
+        protected final LongAdder count = new LongAdder();
+        protected final LongAdder totalNanos = new LongAdder();
+        protected final AtomicLong maxNanos = new AtomicLong();
+
+        protected Timer() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * @return System.nanoTime(), to pass to stop
+         */
+        public long start() {
+            return System.nanoTime();
+        }
+
+        /**
+         * Records the time since start.
+         *
+         * @param start what start returned
+         * @return System.nanoTime() now, so that timing a following stage can start from it
+         */
+        public long stop(long start) {
+            long now = System.nanoTime();
+            record(now - start);
+            return now;
+        }
+
+        public void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            buckets[bucket(nanos)].increment();
+            count.increment();
+            totalNanos.add(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        protected static int bucket(long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return (int) nanos;
+            }
+            int log = 63 - Long.numberOfLeadingZeros(nanos);
+            int sub = (int) (nanos >>> (log - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (log - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return the largest duration that falls in a bucket
+         */
+        protected static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int log = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << (log - SUB_BITS)) - 1;
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long totalNanos() {
+            return totalNanos.sum();
+        }
+
+        public double meanNanos() {
+            long n = count();
+            return n == 0 ? 0 : (double) totalNanos() / n;
+        }
+
+        public long maxNanos() {
+            return maxNanos.get();
+        }
+
+        /**
+         * @param quantile the fraction of durations, between 0 and 1, that should be at or below the result
+         * @return the upper bound of the bucket the quantile falls in, at most the largest duration recorded
+         */
+        public long percentileNanos(double quantile) {
+            long n = count();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * n));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), maxNanos());
+                }
+            }
+            return maxNanos();
+        }
+
+        protected void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            count.reset();
+            totalNanos.reset();
+            maxNanos.set(0);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+import java.util.Map;
+
+/**
+ * The JMX view of Metrics: every counter, gauge and timer, keyed by name.
+ */
+public interface MetricsMXBean {
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getGauges();
+
+    Map<String, Long> getTimerCounts();
+
+    Map<String, Double> getTimerMeanMillis();
+
+    Map<String, Double> getTimerP99Millis();
+
+    Map<String, Double> getTimerMaxMillis();
+
+    double getTokensPerSecond();
+
+    /**
+     * Sets every counter and timer back to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,182 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Saves a built model to a versioned binary file and loads it back, so that queries can be answered
+ * without re-reading the sentences file. The file holds, in order (all numbers big-endian):
+ *
+ *     long    MAGIC
+ *     int     VERSION
+ *     long    offset of the contexts section
+ *     int     number of words, int number of stop words
+ *     long    number of co-occurrence entries, long number of sentences, long number of word occurrences
+ *     int     size of the context window, boolean whether it decays (since version 2)
+ *     UTF     each stop word, then each word in id order
+ *     int[]   sentence frequency of each word
+ *     long[]  CSR row offsets, one per word plus the total number of entries
+ *     int[]   context id of each entry (padded to start on a multiple of 4 bytes)
+ *     int[]   count of each entry
+ *
+ * Loading reads everything up to the row offsets onto the heap and maps the two entry sections
+ * read-only, so the co-occurrence matrix itself is never copied onto the Java heap. Version 1 files, which
+ * have no window, were all counted with ContextWindow.DEFAULT.
+ */
+public class ModelFile {
+    protected static final long MAGIC = 0x53494D4D4F44454CL; // "SIMMODEL"
+    protected static final int VERSION = 2;
+    protected static final long DATA_OFFSET_POSITION = Long.BYTES + Integer.BYTES; // where the contexts offset is stored
+    protected static final long NNZ_POSITION = DATA_OFFSET_POSITION + Long.BYTES + 2 * Integer.BYTES; // where the number of entries is stored
+
+
+    /**
+
+     Writes a model to a file, replacing the file if it exists.
+     @param model the built model to save
+     @param modelFile the path of the file to write
+     @throws IOException if the file cannot be written
+     */
+    public static void save(Similarity model, String modelFile) throws IOException {
+        ModelSnapshot snapshot = model.snapshot;
+        Vocabulary vocabulary = snapshot.vocabulary;
+        CooccurrenceMatrix matrix = snapshot.matrix;
+
+        try (FileChannel channel = FileChannel.open(Paths.get(modelFile), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+
+            writeHeader(out, model.stopList, model.window, vocabulary, snapshot.sentenceFrequencies, matrix.nnz(),
+                    snapshot.numSentences, snapshot.wordCount);
+            for (long offset : matrix.rowOffsets) {
+                out.writeLong(offset);
+            }
+            while (out.size() % Integer.BYTES != 0) {
+                out.writeByte(0);
+            }
+            out.flush();
+
+            // The entries go straight to the channel
+            long dataOffset = channel.position();
+            matrix.contexts.writeTo(channel);
+            matrix.counts.writeTo(channel);
+
+            ByteBuffer offset = ByteBuffer.allocate(Long.BYTES).putLong(0, dataOffset);
+            channel.write(offset, DATA_OFFSET_POSITION);
+        }
+    }
+
+
+    /**
+
+     Writes everything that comes before the row offsets: the header, with a contexts offset of 0 to be
+     filled in once it is known, the stop words, the vocabulary and the sentence frequencies.
+     @param out the stream to write to, at the start of the file
+     @param stopList the stop words of the model
+     @param window the context window the model was counted with
+     @param vocabulary the words of the model
+     @param sentenceFrequencies the sentence frequency of each word id
+     @param nnz the number of co-occurrence entries
+     @param numSentences the number of sentences counted
+     @param wordCount the number of word occurrences counted
+     @throws IOException if the stream cannot be written to
+     */
+    protected static void writeHeader(DataOutputStream out, Set<String> stopList, ContextWindow window,
+                                      Vocabulary vocabulary, int[] sentenceFrequencies, long nnz,
+                                      long numSentences, long wordCount) throws IOException {
+        out.writeLong(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(0);
+        out.writeInt(vocabulary.size());
+        out.writeInt(stopList.size());
+        out.writeLong(nnz);
+        out.writeLong(numSentences);
+        out.writeLong(wordCount);
+        out.writeInt(window.size());
+        out.writeBoolean(window.decay());
+
+        // Stop words and the vocabulary
+        for (String stopWord : stopList) {
+            out.writeUTF(stopWord);
+        }
+        for (int i = 0; i < vocabulary.size(); i++) {
+            out.writeUTF(vocabulary.word(i));
+        }
+
+        for (int i = 0; i < vocabulary.size(); i++) {
+            out.writeInt(sentenceFrequencies[i]);
+        }
+    }
+
+
+    /**
+
+     Reads a model file into an empty model. The stop list, window and snapshot are set; the counts are
+     kept in the snapshot's mapped matrix rather than read onto the heap.
+     @param modelFile the path of the file to read
+     @param model the model to fill in
+     @throws IOException if the file cannot be read or is not a model file of this version
+     */
+    public static void load(String modelFile, Similarity model) throws IOException {
+        Path path = Paths.get(modelFile);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+
+            if (in.readLong() != MAGIC) {
+                throw new IOException(modelFile + " is not a model file");
+            }
+            int version = in.readInt();
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported model file version " + version + " in " + modelFile);
+            }
+            long dataOffset = in.readLong();
+            int vocabSize = in.readInt();
+            int stopWords = in.readInt();
+            long nnz = in.readLong();
+            long numSentences = in.readLong();
+            long wordCount = in.readLong();
+            ContextWindow window = version == 1 ? ContextWindow.DEFAULT : new ContextWindow(in.readInt(), in.readBoolean());
+
+            // Stop words and the vocabulary
+            HashSet<String> stopList = new HashSet<>();
+            for (int i = 0; i < stopWords; i++) {
+                stopList.add(in.readUTF());
+            }
+            Vocabulary vocabulary = new Vocabulary();
+            for (int i = 0; i < vocabSize; i++) {
+                vocabulary.add(in.readUTF());
+            }
+
+            int[] sentenceFrequencies = new int[vocabSize];
+            for (int i = 0; i < vocabSize; i++) {
+                sentenceFrequencies[i] = in.readInt();
+            }
+
+            long[] rowOffsets = new long[vocabSize + 1];
+            for (int i = 0; i <= vocabSize; i++) {
+                rowOffsets[i] = in.readLong();
+            }
+            if (rowOffsets[vocabSize] != nnz) {
+                throw new IOException("Corrupt model file " + modelFile);
+            }
+
+            // Map the entries; the mappings stay valid after the channel is closed
+            BigIntArray contexts = BigIntArray.map(channel, dataOffset, nnz);
+            BigIntArray counts = BigIntArray.map(channel, dataOffset + nnz * Integer.BYTES, nnz);
+
+            model.stopList = stopList;
+            model.window = window;
+            model.snapshot = new ModelSnapshot(vocabulary, new CooccurrenceMatrix(rowOffsets, contexts, counts),
+                    sentenceFrequencies, numSentences, wordCount, model.vectorCacheBytes);
+        }
+    }
+}
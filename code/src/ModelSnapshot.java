@@ -0,0 +1,206 @@
+import java.util.Arrays;
+
+/**
+ * One consistent, immutable state of the model: the vocabulary, the co-occurrence counts, the sentence
+ * frequencies and idf values derived from them, and the normalized vectors built from all of these.
+ * Queries read the current snapshot once and use it throughout, so adding sentences, which swaps in a
+ * new snapshot, never changes the model under a query that is already running.
+ */
+public class ModelSnapshot {
+    protected static final Metrics.Timer IDF = Metrics.global().timer("model.idf");
+    protected static final Metrics.Timer MARGINALS = Metrics.global().timer("model.marginals");
+
+    protected final Vocabulary vocabulary; // all unique words, interned as integer ids; must not be added to
+    protected final CooccurrenceMatrix matrix; // co-occurrence counts by word id
+    protected final int[] sentenceFrequencies; // number of sentences each word id occurs in
+    protected final double[] idfVector; // idf of each word, indexed by word id
+    protected final long numSentences; // number of sentences counted
+    protected final long wordCount; // number of word occurrences counted
+    protected final VectorStore vectors; // normalized vectors built from this snapshot
+    protected volatile ContextIndex contextIndex; // inverted index of the matrix, built on first use
+    protected volatile Marginals marginals; // row and column sums of the matrix, computed on first use
+
+    /**
+     * @param vocabulary all unique words, interned as integer ids
+     * @param matrix the co-occurrence counts by word id, with one row per word
+     * @param sentenceFrequencies the number of sentences each word id occurs in
+     * @param numSentences the number of sentences counted
+     * @param wordCount the number of word occurrences counted
+     * @param vectorCacheBytes the memory budget of the normalized vectors kept for this snapshot
+     */
+    public ModelSnapshot(Vocabulary vocabulary, CooccurrenceMatrix matrix, int[] sentenceFrequencies,
+                         long numSentences, long wordCount, long vectorCacheBytes) {
+        this.vocabulary = vocabulary;
+        this.matrix = matrix;
+        this.sentenceFrequencies = sentenceFrequencies;
+        this.numSentences = numSentences;
+        this.wordCount = wordCount;
+
+        //update idf vector
+        long started = IDF.start();
+        idfVector = new double[vocabulary.size()];
+        for (int i = 0; i < idfVector.length; i++) {
+            idfVector[i] = Math.log((double) numSentences / (double) sentenceFrequencies[i]);
+        }
+        IDF.stop(started);
+        vectors = new VectorStore(this, vectorCacheBytes);
+    }
+
+
+    /**
+
+     Builds the snapshot of a finished ingestion.
+     @param counts the counts of the whole sentences file
+     @param vectorCacheBytes the memory budget of the normalized vectors kept for the snapshot
+     @return the snapshot of the counts
+     */
+    public static ModelSnapshot fromCounts(CooccurrenceCounts counts, long vectorCacheBytes) {
+        return fromCounts(counts, vectorCacheBytes, false);
+    }
+
+
+    /**
+
+     Builds the snapshot of a finished ingestion.
+     @param counts the counts of the whole sentences file
+     @param vectorCacheBytes the memory budget of the normalized vectors kept for the snapshot
+     @param offHeap whether to keep the co-occurrence matrix's entries in direct buffers outside the heap
+     @return the snapshot of the counts
+     */
+    public static ModelSnapshot fromCounts(CooccurrenceCounts counts, long vectorCacheBytes, boolean offHeap) {
+        int[] sentenceFrequencies = Arrays.copyOf(counts.sentenceFrequencies, counts.vocabulary.size());
+        return new ModelSnapshot(counts.vocabulary, CooccurrenceMatrix.fromCounts(counts, offHeap), sentenceFrequencies,
+                counts.numSentences, counts.wordCount, vectorCacheBytes);
+    }
+
+
+    /**
+
+     Builds the snapshot that results from adding a batch of sentences to this one. This snapshot is left
+     unchanged. Words the batch introduces get ids after the existing ones. The raw term frequency
+     vectors of words that do not occur in the batch are carried over to the new snapshot, since their
+     rows did not change; every other vector is rebuilt on use, including all TF-IDF vectors, as the new
+     sentence count changes the idf of every word.
+     @param batch the counts of the new sentences, with ids local to the batch
+     @param vectorCacheBytes the memory budget of the normalized vectors kept for the new snapshot
+     @return the updated snapshot
+     */
+    public ModelSnapshot plus(CooccurrenceCounts batch, long vectorCacheBytes) {
+        // Map the batch's ids into a copy of this vocabulary
+        Vocabulary merged = new Vocabulary(vocabulary);
+        int[] remap = new int[batch.vocabulary.size()];
+        for (int i = 0; i < remap.length; i++) {
+            remap[i] = merged.add(batch.vocabulary.word(i));
+        }
+
+        // Sentence frequencies, and which words the batch touched
+        int[] frequencies = Arrays.copyOf(sentenceFrequencies, merged.size());
+        boolean[] touched = new boolean[merged.size()];
+        for (int i = 0; i < remap.length; i++) {
+            frequencies[remap[i]] += batch.sentenceFrequency(i);
+            touched[remap[i]] = true;
+        }
+
+        // Co-occurrence counts
+        LongIntHashMap pairs = new LongIntHashMap(batch.pairs.size());
+        for (int s = batch.pairs.nextSlot(0); s >= 0; s = batch.pairs.nextSlot(s + 1)) {
+            long key = batch.pairs.keyAt(s);
+            int word = remap[LongIntHashMap.wordOf(key)];
+            int context = remap[LongIntHashMap.contextOf(key)];
+            pairs.addTo(LongIntHashMap.pack(word, context), batch.pairs.valueAt(s));
+        }
+        CooccurrenceMatrix delta = CooccurrenceMatrix.fromPairs(pairs, merged.size());
+
+        ModelSnapshot updated = new ModelSnapshot(merged, matrix.plus(delta), frequencies,
+                numSentences + batch.numSentences, wordCount + batch.wordCount, vectorCacheBytes);
+        updated.vectors.carryOver(vectors, Weighting.TF, touched);
+        return updated;
+    }
+
+
+    /**
+
+     Returns the inverted index from each context word to the words that co-occur with it, building it the
+     first time it is asked for. It is not built up front so that snapshots that are never queried by
+     COSINE, such as the intermediate ones of a run of updates, do not pay for it.
+     @return the index of this snapshot's matrix
+     */
+    public ContextIndex contextIndex() {
+        ContextIndex index = contextIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = contextIndex;
+                if (index == null) {
+                    contextIndex = index = ContextIndex.build(matrix);
+                }
+            }
+        }
+        return index;
+    }
+
+
+    /**
+
+     Returns the sums of the co-occurrence counts of every word and every context, computing them in one
+     pass over the matrix the first time they are asked for. Like the context index, they are only paid
+     for by snapshots that are queried with a weighting that needs them.
+     @return the marginals of this snapshot's matrix
+     */
+    public Marginals marginals() {
+        Marginals sums = marginals;
+        if (sums == null) {
+            synchronized (this) {
+                sums = marginals;
+                if (sums == null) {
+                    marginals = sums = Marginals.of(matrix);
+                }
+            }
+        }
+        return sums;
+    }
+
+
+    /**
+     * @return the number of bytes the co-occurrence matrix and the arrays indexed by word id take up on the
+     *         heap, not counting the vocabulary's strings or the normalized vectors
+     */
+    public long heapBytes() {
+        return matrix.heapBytes() + (long) sentenceFrequencies.length * Integer.BYTES
+                + (long) idfVector.length * Double.BYTES;
+    }
+
+    /**
+     * The row and column sums of a co-occurrence matrix, which PPMI weighting divides each count by.
+     */
+    public static class Marginals {
+        protected final long[] rows; // sum of the counts of each word's row
+        protected final long[] columns; // sum of the counts of each context's column
+        protected final long total; // sum of all counts
+
+        protected Marginals(long[] rows, long[] columns, long total) {
+            this.rows = rows;
+            this.columns = columns;
+            this.total = total;
+        }
+
+        protected static Marginals of(CooccurrenceMatrix matrix) {
+            long started = MARGINALS.start();
+            int n = matrix.rows();
+            long[] rows = new long[n];
+            long[] columns = new long[n];
+            long total = 0;
+            for (int w = 0; w < n; w++) {
+                long row = 0;
+                for (long i = matrix.rowOffsets[w]; i < matrix.rowOffsets[w + 1]; i++) {
+                    int count = matrix.counts.get(i);
+                    row += count;
+                    columns[matrix.contexts.get(i)] += count;
+                }
+                rows[w] = row;
+                total += row;
+            }
+            MARGINALS.stop(started);
+            return new Marginals(rows, columns, total);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * One of the most similar words to a target word, as returned by Similarity.topK.
+ */
+public class Neighbor {
+    protected final String word;
+    protected final int id; // id of the word in the model's vocabulary
+    protected final double score; // similarity or distance to the target word, depending on the measure
+
+    public Neighbor(String word, int id, double score) {
+        this.word = word;
+        this.id = id;
+        this.score = score;
+    }
+
+    /**
+     * @return the similar word
+     */
+    public String word() {
+        return word;
+    }
+
+    /**
+     * @return the id of the word in the vocabulary of the model that was queried
+     */
+    public int id() {
+        return id;
+    }
+
+    /**
+     * @return the score of the word against the target word
+     */
+    public double score() {
+        return score;
+    }
+
+    /**
+     * @return the word and its score separated by a tab, as printed by runStats
+     */
+    @Override
+    public String toString() {
+        return word + "\t" + score;
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * A request for the k most similar words to a target word under a weighting scheme and a measure.
+ */
+public class Query {
+    protected final String word; // the target word
+    protected final Weighting weighting;
+    protected final Measure measure;
+    protected final int k; // number of similar words to return
+
+    /**
+     * @param word the target word
+     * @param weighting the weighting scheme of the vectors to compare
+     * @param measure the measure to compare the vectors with
+     * @param k the number of similar words to return
+     * @throws IllegalArgumentException if k is negative
+     */
+    public Query(String word, Weighting weighting, Measure measure, int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must not be negative");
+        }
+        this.word = word;
+        this.weighting = weighting;
+        this.measure = measure;
+        this.k = k;
+    }
+
+    /**
+     * @param word the target word
+     * @param weighting the weighting string, as in the input file
+     * @param measure the similarity measure string, as in the input file
+     * @param k the number of similar words to return
+     * @throws IllegalArgumentException if the measure is unknown or k is negative
+     */
+    public Query(String word, String weighting, String measure, int k) {
+        this(word, Weighting.fromString(weighting), Measure.fromString(measure), k);
+    }
+
+    public String word() {
+        return word;
+    }
+
+    public Weighting weighting() {
+        return weighting;
+    }
+
+    public Measure measure() {
+        return measure;
+    }
+
+    public int k() {
+        return k;
+    }
+}
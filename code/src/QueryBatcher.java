@@ -0,0 +1,134 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Collects queries submitted from many threads and answers them in batches, so that queries arriving at
+ * the same time share one pass over the candidate vectors. A single dispatcher thread takes whatever has
+ * queued up since the last batch started, up to MAX_BATCH queries, and runs it through Similarity.topK.
+ * Nothing waits to fill a batch: a query that arrives while the dispatcher is idle is answered on its own
+ * straight away, and batches only grow when queries arrive faster than they can be answered.
+ */
+public class QueryBatcher implements AutoCloseable {
+    // most queries answered in one pass, so a flood of queries does not hold up the first ones for long
+    protected static final int MAX_BATCH = 64;
+
+    protected final Similarity model;
+    protected final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    protected final Thread dispatcher;
+    protected volatile boolean closed;
+
+    /**
+     * @param model the model to answer queries from
+     */
+    public QueryBatcher(Similarity model) {
+        this.model = model;
+        this.dispatcher = new Thread(this::dispatch, "query-batcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+
+    /**
+
+     Queues a query to be answered in the next batch.
+     @param query the query to answer
+     @return the most similar words, once the query's batch has run; fails with IllegalArgumentException
+             if the target word is not in the vocabulary
+     @throws IllegalStateException if the batcher has been closed
+     */
+    public CompletableFuture<List<Neighbor>> submit(Query query) {
+        if (closed) {
+            throw new IllegalStateException("Query batcher is closed");
+        }
+        Pending pending = new Pending(query);
+        queue.add(pending);
+        // The dispatcher may have stopped between the check above and adding the query
+        if (closed && queue.remove(pending)) {
+            pending.result.completeExceptionally(new IllegalStateException("Query batcher is closed"));
+        }
+        return pending.result;
+    }
+
+
+    /**
+
+     Runs batches until the batcher is closed.
+     */
+    protected void dispatch() {
+        ArrayList<Pending> batch = new ArrayList<>(MAX_BATCH);
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            answer(batch);
+            batch.clear();
+        }
+
+        // Fail whatever was still queued
+        queue.drainTo(batch);
+        for (Pending pending : batch) {
+            pending.result.completeExceptionally(new IllegalStateException("Query batcher is closed"));
+        }
+    }
+
+
+    /**
+
+     Answers a batch of queries in one pass. If the pass fails, for example because one target word is
+     unknown, every query is answered on its own so that only the bad ones fail.
+     @param batch the queries to answer
+     */
+    protected void answer(List<Pending> batch) {
+        List<Query> queries = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            queries.add(pending.query);
+        }
+        try {
+            List<List<Neighbor>> results = model.topK(queries);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(results.get(i));
+            }
+            return;
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                batch.get(0).result.completeExceptionally(e);
+                return;
+            }
+        }
+        for (Pending pending : batch) {
+            try {
+                pending.result.complete(model.topK(pending.query));
+            } catch (RuntimeException e) {
+                pending.result.completeExceptionally(e);
+            }
+        }
+    }
+
+
+    /**
+
+     Stops the dispatcher. Queries that have not started yet fail with IllegalStateException.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.interrupt();
+    }
+
+    /**
+     * A query waiting for its batch, and the future its result goes to.
+     */
+    protected static class Pending {
+        protected final Query query;
+        protected final CompletableFuture<List<Neighbor>> result = new CompletableFuture<>();
+
+        protected Pending(Query query) {
+            this.query = query;
+        }
+    }
+}
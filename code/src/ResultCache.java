@@ -0,0 +1,197 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps the most similar words of recently answered queries, so that popular target words are only
+ * ranked once. Results are keyed by target word, weighting and measure, and one result serves every k up
+ * to the k it was computed for: since the ranking breaks ties by word id, the best k words are always the
+ * first k of a longer list. A result computed when the vocabulary had fewer than k other words serves
+ * any k at all.
+ *
+ * Every result remembers the snapshot it was computed from and is only used while that snapshot is the
+ * current one, so adding sentences makes all earlier results stale; Similarity also clears the cache when
+ * it swaps in a new snapshot, to free their memory straight away.
+ *
+ * The cache holds about maxEntries results, evicting the least recently used. Like VectorStore it is
+ * split into segments by key, each with its own lock and an equal share of the entries (rounded up), so
+ * it is safe and cheap to use from many threads.
+ */
+public class ResultCache {
+    // number of independently locked segments, a power of two
+    protected static final int SEGMENTS = 16;
+
+    protected final int maxEntries; // most results kept, over all segments
+    protected final Segment[] segments; // stored results, split up by key
+
+    /**
+     * @param maxEntries the most results to keep; 0 turns the cache off
+     * @throws IllegalArgumentException if maxEntries is negative
+     */
+    public ResultCache(int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative");
+        }
+        this.maxEntries = maxEntries;
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            // Round up so that a small cache still keeps something in every segment
+            segments[i] = new Segment((maxEntries + SEGMENTS - 1) / SEGMENTS);
+        }
+    }
+
+
+    /**
+
+     Looks up the result of a query.
+     @param model the snapshot the query is answered from
+     @param query the query
+     @return the most similar words, most similar first, or null if no result for at least query.k()
+             words was computed from this snapshot; the list must not be modified
+     */
+    public List<Neighbor> get(ModelSnapshot model, Query query) {
+        String key = key(query);
+        return segment(key).get(key, model, query.k());
+    }
+
+
+    /**
+
+     Stores the result of a query, unless a result for a larger k from the same snapshot is already stored.
+     @param model the snapshot the query was answered from
+     @param query the query
+     @param neighbors the most similar words, most similar first
+     @return an unmodifiable view of neighbors, which is what later lookups return
+     */
+    public List<Neighbor> put(ModelSnapshot model, Query query, List<Neighbor> neighbors) {
+        List<Neighbor> result = Collections.unmodifiableList(neighbors);
+        if (maxEntries > 0) {
+            String key = key(query);
+            segment(key).put(key, new Entry(model, result, neighbors.size() < query.k()));
+        }
+        return result;
+    }
+
+
+    /**
+
+     Removes every stored result.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @return the number of results currently stored
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of lookups answered from a stored result
+     */
+    public long hits() {
+        long hits = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that found no usable result
+     */
+    public long misses() {
+        long misses = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                misses += segment.misses;
+            }
+        }
+        return misses;
+    }
+
+    protected static String key(Query query) {
+        // Target words never contain whitespace, so a tab cannot make two keys run together
+        return query.word() + '\t' + query.weighting() + '\t' + query.measure();
+    }
+
+    protected Segment segment(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * A stored result and the snapshot it was computed from.
+     */
+    protected static class Entry {
+        protected final ModelSnapshot model;
+        protected final List<Neighbor> neighbors; // most similar words, most similar first
+        protected final boolean complete; // true if neighbors holds every other word, so it serves any k
+
+        protected Entry(ModelSnapshot model, List<Neighbor> neighbors, boolean complete) {
+            this.model = model;
+            this.neighbors = neighbors;
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * One lock's worth of stored results, in least recently used order.
+     */
+    protected static class Segment {
+        protected final int maxEntries; // this segment's share of the results
+        protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        protected long hits;
+        protected long misses;
+
+        protected Segment(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        protected synchronized List<Neighbor> get(String key, ModelSnapshot model, int k) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.model != model) {
+                // Computed from an earlier snapshot; it can never be used again
+                entries.remove(key);
+                entry = null;
+            }
+            if (entry == null || (entry.neighbors.size() < k && !entry.complete)) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return k < entry.neighbors.size() ? entry.neighbors.subList(0, k) : entry.neighbors;
+        }
+
+        protected synchronized void put(String key, Entry entry) {
+            if (maxEntries == 0) {
+                return;
+            }
+            Entry existing = entries.get(key);
+            if (existing != null && existing.model == entry.model
+                    && (existing.complete || existing.neighbors.size() >= entry.neighbors.size())) {
+                return;
+            }
+            entries.put(key, entry);
+            if (entries.size() > maxEntries) {
+                entries.remove(entries.keySet().iterator().next());
+            }
+        }
+
+        protected synchronized void clear() {
+            entries.clear();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Scores a range of word ids against a batch of target vectors on a ForkJoinPool, splitting the range in
+ * half until the pieces are small enough to score sequentially. Every piece keeps its own best words for
+ * each target, and the halves are merged on the way back up. TopK breaks ties by word id, so the result
+ * does not depend on how the work was split up.
+ */
+public class ScoreTask extends RecursiveTask<TopK[]> {
+    private static final long serialVersionUID = 1L;
+
+    // ranges of at most this many word ids are scored without splitting further
+    protected static final int THRESHOLD = 2048;
+
+    protected final VectorStore vectors; // normalized vectors of the snapshot being queried
+    protected final Query[] queries;
+    protected final int[] targetIds; // id of each query's target word
+    protected final SparseVector[] targets; // normalized vector of each query's target word
+    protected final int from; // first word id to score
+    protected final int to; // one past the last word id to score
+
+    public ScoreTask(VectorStore vectors, Query[] queries, int[] targetIds, SparseVector[] targets, int from, int to) {
+        this.vectors = vectors;
+        this.queries = queries;
+        this.targetIds = targetIds;
+        this.targets = targets;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected TopK[] compute() {
+        if (to - from <= THRESHOLD) {
+            return Similarity.scoreRange(vectors, queries, targetIds, targets, from, to);
+        }
+        int mid = (from + to) >>> 1;
+        ScoreTask left = new ScoreTask(vectors, queries, targetIds, targets, from, mid);
+        left.fork();
+        TopK[] tops = new ScoreTask(vectors, queries, targetIds, targets, mid, to).compute();
+        TopK[] leftTops = left.join();
+        for (int q = 0; q < tops.length; q++) {
+            tops[q].addAll(leftTops[q]);
+        }
+        return tops;
+    }
+}
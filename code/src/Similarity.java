@@ -1,22 +1,54 @@
 import java.io.*;
 import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
 public class Similarity {
-    protected HashMap<String, HashMap<String, Double>> termFrequencies; // hashmap of target words and words in the sentence with them
-    // and the count of words that occur with them
-    protected HashMap<String, ArrayList<String>> targetInfo; // hashmap of target words corresponding to an arraylist with
-    // the weighting in index 0 and the similarity measure in index 1
-    protected HashMap<String, Double> sentenceFrequencies;
+    // default memory budget for the normalized vectors kept between target words
+    public static final long DEFAULT_VECTOR_CACHE_BYTES = Runtime.getRuntime().maxMemory() / 4;
+    // default number of most similar words printed for each target word
+    public static final int DEFAULT_K = 10;
+    // default number of query results kept for repeated target words
+    public static final int DEFAULT_RESULT_CACHE_ENTRIES = 10_000;
+
+    protected static final Metrics.Timer STOP_LIST_LOAD = Metrics.global().timer("stoplist.load");
+    protected static final Metrics.Timer QUERY_LATENCY = Metrics.global().timer("query.latency");
+    protected static final Metrics.Timer QUERY_SCORE = Metrics.global().timer("query.score");
+    protected static final Metrics.Timer QUERY_RANK = Metrics.global().timer("query.rank");
+    protected static final LongAdder QUERIES = Metrics.global().counter("query.count");
+
+    // The model that queries read: vocabulary, co-occurrence counts, idf vector and normalized vectors. A
+    // snapshot is never changed once built, so target words can be scored from several threads at once
+    // without locking; adding sentences builds a new snapshot and swaps it in.
+    protected volatile ModelSnapshot snapshot;
+    protected LinkedHashMap<String, ArrayList<String>> targetInfo; // hashmap of target words, in input order, corresponding to an
+    // arraylist with the weighting in index 0 and the similarity measure in index 1
     protected HashSet<String> stopList; // hashset containing words in the stopList
-    protected HashSet<String> uniqueSet; // hashset containing all unique words in sentences file
-    protected ArrayList<String> uniqueList;
-    protected ArrayList<Double> idfVector;
-    protected Double numSentences; // number of sentences in the sentences file
-    protected int wordCount; // number of word occurrences in the sentences file
+    protected final long vectorCacheBytes; // memory budget of the normalized vectors kept for each snapshot
+    protected final Object updateLock = new Object(); // held while sentences are added, so updates run one at a time
+    protected boolean offHeap; // whether built co-occurrence counts are kept in direct buffers outside the heap
+    protected ContextWindow window = ContextWindow.DEFAULT; // which words count as a word's context, also for added sentences
+    // results of recent topK queries, for the current snapshot only
+    protected volatile ResultCache resultCache = new ResultCache(DEFAULT_RESULT_CACHE_ENTRIES);
+    // COSINE queries skip contexts that co-occur with more words than this when gathering candidates
+    protected volatile int maxContextPostings = Integer.MAX_VALUE;
+    protected ForkJoinPool pool; // pool the sentences file is counted and target words are scored on, or null to run sequentially
+    // approximate nearest-neighbour index for each weighting, or null; only used while it matches the snapshot
+    protected final LshIndex[] indexes = new LshIndex[Weighting.values().length];
+    // dense embeddings for each weighting, or null; while they match the snapshot, runSims scores with them
+    protected final EmbeddingTable[] embeddings = new EmbeddingTable[Weighting.values().length];
 
     /**
      * @param stopListFile is a list of stop words, one per line, that should be ignored from the input
@@ -28,161 +60,388 @@ public class Similarity {
      *                      – TFIDF: term frequency with inverse document frequency weighting – use the term
      *                      frequency times the inverse document frequency. Calculate IDF using the <sentences>
      *                      file treating each line as a separate document.
+     *                      – PPMI: positive pointwise mutual information of the word and each context word,
+     *                      from the co-occurrence counts and their row and column sums.
      *                  and <sim measure> is one of:
      *                      – L1: L1 distance, normalized by the L2 (Euclidean) length of the vectors.
      *                      – EUCLIDEAN: Euclidean distance, normalized by the L2 (Euclidean) length of the vectors.
      *                      – COSINE: Cosine distance, normalized by the L2 (Euclidean) length of the vectors.
+     *                  A line whose word is not in the vocabulary or whose measure is unknown prints an
+     *                  ERROR line in place of its words, and the lines after it are still run.
      */
     public Similarity(String stopListFile, String sentences, String inputFile) throws IOException {
+        this(stopListFile, sentences, inputFile, DEFAULT_VECTOR_CACHE_BYTES);
+    }
+
+    /**
+     * @param stopListFile is a list of stop words, one per line, that should be ignored from the input
+     * @param sentences is a list of sentences/text fragments, one per line, to be used for training
+     * @param inputFile is a file of <word> <weighting> <sim_measure> lines, as described above
+     * @param vectorCacheBytes is the maximum number of bytes of normalized vectors to keep between target words;
+     *                         the least recently used vectors are rebuilt when they do not fit
+     */
+    public Similarity(String stopListFile, String sentences, String inputFile, long vectorCacheBytes)
+            throws IOException {
+        this(stopListFile, sentences, inputFile, vectorCacheBytes, null);
+    }
+
+    /**
+     * @param stopListFile is a list of stop words, one per line, that should be ignored from the input
+     * @param sentences is a list of sentences/text fragments, one per line, to be used for training
+     * @param inputFile is a file of <word> <weighting> <sim_measure> lines, as described above
+     * @param vectorCacheBytes is the maximum number of bytes of normalized vectors to keep between target words
+     * @param pool is the pool to count ranges of the sentences file, and to score target words and ranges of
+     *             candidates within a target word, on in parallel; counts are the same as counting sequentially
+     *             and results are still printed in input order. If null, everything runs on this thread
+     */
+    public Similarity(String stopListFile, String sentences, String inputFile, long vectorCacheBytes,
+                      ForkJoinPool pool) throws IOException {
+        this(vectorCacheBytes, pool);
+        readStopList(stopListFile);
+        readTargets(inputFile);
+        build(sentences);
+        printStats();
+        runStats();
+    }
+
+    /**
+     * Creates an empty model, to be filled in by build or by loading a model file.
+     *
+     * @param vectorCacheBytes is the maximum number of bytes of normalized vectors to keep between target words
+     * @param pool is the pool to run on in parallel, or null to run everything on this thread
+     */
+    protected Similarity(long vectorCacheBytes, ForkJoinPool pool) {
+        this.pool = pool;
+        this.vectorCacheBytes = vectorCacheBytes;
+
         // Initialize data structures
-        termFrequencies = new HashMap<>();
-        sentenceFrequencies = new HashMap<>();
-        targetInfo = new HashMap<>();
+        targetInfo = new LinkedHashMap<>();
         stopList = new HashSet<>();
-        uniqueSet = new HashSet<>();
-        uniqueList = new ArrayList<>();
-        wordCount = 0;
-        numSentences = 0.0;
+        registerGauges();
+    }
 
-        // Read stop words from file and add them to stopList
-        File file = new File(stopListFile);
-        BufferedReader br = new BufferedReader(new FileReader(file));
-        String st = br.readLine();
 
-        while (st != null) {
-            String stopWord = st.toLowerCase();
-            stopList.add(stopWord);
+    /**
 
-            st = br.readLine();
-        }
+     Points the model gauges of Metrics.global() at this model, replacing those of any model created
+     before it. The gauges read 0 until a snapshot is built or loaded.
+     */
+    protected void registerGauges() {
+        Metrics metrics = Metrics.global();
+        metrics.gauge("model.words", () -> snapshot == null ? 0 : snapshot.vocabulary.size());
+        metrics.gauge("model.cooccurrences", () -> snapshot == null ? 0 : snapshot.matrix.nnz());
+        metrics.gauge("model.heapBytes", () -> snapshot == null ? 0 : snapshot.heapBytes());
+        metrics.gauge("model.offHeapBytes", () -> snapshot == null ? 0 : snapshot.matrix.offHeapBytes());
+        metrics.gauge("vectors.cachedBytes", () -> snapshot == null ? 0 : snapshot.vectors.usedBytes());
+        metrics.gauge("results.entries", () -> resultCache.size());
+        metrics.gauge("results.hits", () -> resultCache.hits());
+        metrics.gauge("results.misses", () -> resultCache.misses());
+        metrics.gauge("jvm.heapUsedBytes", () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+    }
 
-        // Read target words and their weighting/similarity measures from file and add them to targetInfo
-        file = new File(inputFile);
-        br = new BufferedReader(new FileReader(file));
-        st = br.readLine();
 
-        while (st != null) {
-            String[] words = st.split("\\s+");
+    /**
 
-            if (!targetInfo.containsKey(words[0])) {
-                ArrayList<String> infoList = new ArrayList<>();
-                infoList.add(words[1]); // add weighting
-                infoList.add(words[2]); // add similarity measure
-                targetInfo.put(words[0], infoList);
-            }
+     Builds a model from a sentences file without reading target words or printing anything, for answering
+     queries through topK.
+     @param stopListFile is a list of stop words, one per line, that should be ignored from the input
+     @param sentences is a list of sentences/text fragments, one per line, to be used for training
+     @param vectorCacheBytes is the maximum number of bytes of normalized vectors to keep between queries
+     @param pool is the pool to count the sentences file and score queries on in parallel, or null to run
+                 everything on the calling thread
+     @return the built model
+     @throws IOException if either file cannot be read
+     */
+    public static Similarity fromCorpus(String stopListFile, String sentences, long vectorCacheBytes, ForkJoinPool pool)
+            throws IOException {
+        return fromCorpus(stopListFile, sentences, vectorCacheBytes, pool, false);
+    }
 
-            st = br.readLine();
-        }
 
-        // Read sentences from file and process each sentence
-        file = new File(sentences);
-        br = new BufferedReader(new FileReader(file));
-        st = br.readLine();
-        ArrayList<String> currentWords;
+    /**
 
-        while (st != null) {
-            currentWords = new ArrayList<>();
-            String stLower = st.toLowerCase();
+     Builds a model from a sentences file, as for fromCorpus(String, String, long, ForkJoinPool), optionally
+     keeping the co-occurrence counts outside the heap. Off-heap counts take the same 8 bytes an entry, but
+     are never scanned or moved by the garbage collector and do not count against the maximum heap size;
+     the JVM's limit on direct memory (-XX:MaxDirectMemorySize) must leave room for them instead.
+     @param stopListFile is a list of stop words, one per line, that should be ignored from the input
+     @param sentences is a list of sentences/text fragments, one per line, to be used for training
+     @param vectorCacheBytes is the maximum number of bytes of normalized vectors to keep between queries
+     @param pool is the pool to count the sentences file and score queries on in parallel, or null to run
+                 everything on the calling thread
+     @param offHeap whether to keep the co-occurrence counts in direct buffers
+     @return the built model
+     @throws IOException if either file cannot be read
+     */
+    public static Similarity fromCorpus(String stopListFile, String sentences, long vectorCacheBytes, ForkJoinPool pool,
+                                        boolean offHeap) throws IOException {
+        return fromCorpus(stopListFile, sentences, ContextWindow.DEFAULT, vectorCacheBytes, pool, offHeap);
+    }
 
-            String[] words = stLower.split("\\s+");
-            ArrayList<String> rawWords = new ArrayList<String>();
 
-            // Preprocess sentence
-            for (String word : words) {
-                // Skip stop words
-                if (stopList.contains(word)) {
-                    continue;
-                }
+    /**
 
-                // Add all words that are exclusively letters
-                if (isAlpha(word)) {
-                    rawWords.add(word);
-                }
-            }
+     Builds a model from a sentences file, as for fromCorpus(String, String, long, ForkJoinPool, boolean),
+     counting co-occurrences within the given window. Sentences added later are counted the same way.
+     @param stopListFile is a list of stop words, one per line, that should be ignored from the input
+     @param sentences is a list of sentences/text fragments, one per line, to be used for training
+     @param window which words count as a word's context, and how much each one counts
+     @param vectorCacheBytes is the maximum number of bytes of normalized vectors to keep between queries
+     @param pool is the pool to count the sentences file and score queries on in parallel, or null to run
+                 everything on the calling thread
+     @param offHeap whether to keep the co-occurrence counts in direct buffers
+     @return the built model
+     @throws IOException if either file cannot be read
+     */
+    public static Similarity fromCorpus(String stopListFile, String sentences, ContextWindow window,
+                                        long vectorCacheBytes, ForkJoinPool pool, boolean offHeap) throws IOException {
+        Similarity model = new Similarity(vectorCacheBytes, pool);
+        model.offHeap = offHeap;
+        model.window = window;
+        model.readStopList(stopListFile);
+        model.build(sentences);
+        return model;
+    }
 
-            // Iterate over each word in the sentence and process it
-            for (int j = 0; j < rawWords.size(); j++) {
-                String jWord = rawWords.get(j);
 
+    /**
 
-                // Add word to sentenceFrequencies if it hasn't been seen before
-                if (!sentenceFrequencies.containsKey(jWord)) {
-                    sentenceFrequencies.put(jWord, 0.0);
-                }
+     Builds a model from a sentences file whose co-occurrence counts may not fit on the heap, without
+     reading target words or printing anything. The counts are spilled to sorted runs next to the model
+     file and merged into it, and the model file is then mapped as for fromModelFile, so the heap this
+     takes does not grow with the size of the corpus. The model file is kept and can be loaded again later.
+     @param stopListFile is a list of stop words, one per line, that should be ignored from the input
+     @param sentences is a list of sentences/text fragments, one per line, to be used for training
+     @param modelFile the model file to write
+     @param spillBytes the heap the counted pairs may take up before they are spilled to disk
+     @param vectorCacheBytes is the maximum number of bytes of normalized vectors to keep between queries
+     @param pool is the pool to score queries on in parallel, or null to run everything on the calling thread
+     @return the built model
+     @throws IOException if a file cannot be read or written
+     */
+    public static Similarity fromCorpusOnDisk(String stopListFile, String sentences, String modelFile, long spillBytes,
+                                              long vectorCacheBytes, ForkJoinPool pool) throws IOException {
+        return fromCorpusOnDisk(stopListFile, sentences, modelFile, ContextWindow.DEFAULT, spillBytes, vectorCacheBytes, pool);
+    }
 
-                // Add word to currentWords if it hasn't been seen in this sentence before
-                if (!currentWords.contains(jWord)) {
-                    currentWords.add(jWord);
-                }
 
-                // Add word to uniqueSet and uniqueList if it hasn't been seen
-                if (!uniqueSet.contains(jWord)) {
-                    // adds word if not already in set
-                    uniqueSet.add(jWord);
-                    uniqueList.add(jWord);
-                }
+    /**
 
-                // Add word to termFrequencies if it hasn't been seen before
-                if (!termFrequencies.containsKey(jWord)) {
-                    termFrequencies.put(jWord, new HashMap<>());
-                }
+     Builds a model from a sentences file through a model file, as for
+     fromCorpusOnDisk(String, String, String, long, long, ForkJoinPool), counting co-occurrences within the
+     given window. The window is saved in the model file.
+     @param stopListFile is a list of stop words, one per line, that should be ignored from the input
+     @param sentences is a list of sentences/text fragments, one per line, to be used for training
+     @param modelFile the model file to write
+     @param window which words count as a word's context, and how much each one counts
+     @param spillBytes the heap the counted pairs may take up before they are spilled to disk
+     @param vectorCacheBytes is the maximum number of bytes of normalized vectors to keep between queries
+     @param pool is the pool to score queries on in parallel, or null to run everything on the calling thread
+     @return the built model
+     @throws IOException if a file cannot be read or written
+     */
+    public static Similarity fromCorpusOnDisk(String stopListFile, String sentences, String modelFile, ContextWindow window,
+                                              long spillBytes, long vectorCacheBytes, ForkJoinPool pool) throws IOException {
+        Similarity model = new Similarity(vectorCacheBytes, pool);
+        model.readStopList(stopListFile);
+        Path tempDir = Paths.get(modelFile).toAbsolutePath().getParent();
+        new SpillingIngester(model.stopList, StandardCharsets.UTF_8, window, spillBytes, tempDir).build(sentences, modelFile);
+        ModelFile.load(modelFile, model);
+        return model;
+    }
 
-                int startContext;
-                if (j <= 2) {
-                    startContext = 0;
-                } else {
-                    startContext = j - 2;
-                }
 
-                int endContext;
-                if (j > (rawWords.size() - 3)) {
-                    endContext = rawWords.size() - 1;
-                } else {
-                    endContext = j + 2;
-                }
+    /**
 
-                // Iterate over each word within the two word context
-                for (int k = startContext; k <= endContext; k++) {
-                    String kWord = rawWords.get(k);
+     Loads a model saved with save without reading target words or printing anything, for answering
+     queries through topK. The co-occurrence counts are memory-mapped rather than read onto the heap,
+     so loading takes time in proportion to the vocabulary, not to the corpus.
+     @param modelFile the model file to load
+     @param vectorCacheBytes is the maximum number of bytes of normalized vectors to keep between queries
+     @param pool is the pool to score queries on in parallel, or null to run everything on the calling thread
+     @return the loaded model
+     @throws IOException if the file cannot be read
+     */
+    public static Similarity fromModelFile(String modelFile, long vectorCacheBytes, ForkJoinPool pool)
+            throws IOException {
+        Similarity model = new Similarity(vectorCacheBytes, pool);
+        ModelFile.load(modelFile, model);
+        return model;
+    }
 
-                    // Don't count a word as co-occurring with itself
-                    if (j == k) { continue; }
 
-                    // Add word to termFrequencies and increment its count
-                    if (!termFrequencies.get(jWord).containsKey(kWord)) {
-                        termFrequencies.get(jWord).put(kWord, 1.0);
-                    } else {
-                        termFrequencies.get(jWord).put(kWord, termFrequencies.get(jWord).get(kWord) + 1);
-                    }
-                }
+    /**
 
-                // Increment word count
-                wordCount++;
-            }
+     Loads a model saved with save and runs the similarity calculations for the target words in the input
+     file, without reading the sentences file again.
+     @param modelFile the model file to load
+     @param inputFile is a file of <word> <weighting> <sim_measure> lines, as for the constructor
+     @param vectorCacheBytes is the maximum number of bytes of normalized vectors to keep between target words
+     @param pool is the pool to score target words on in parallel, or null to run everything on this thread
+     @return the loaded model
+     @throws IOException if either file cannot be read
+     */
+    public static Similarity load(String modelFile, String inputFile, long vectorCacheBytes, ForkJoinPool pool)
+            throws IOException {
+        Similarity model = fromModelFile(modelFile, vectorCacheBytes, pool);
+        model.readTargets(inputFile);
+        model.printStats();
+        model.runStats();
+        return model;
+    }
+
+
+    /**
+
+     Saves the model to a versioned binary file that load can read back.
+     @param modelFile the file to write
+     @throws IOException if the file cannot be written
+     */
+    public void save(String modelFile) throws IOException {
+        ModelFile.save(this, modelFile);
+    }
 
-            numSentences++;
 
-            //update sentence frequencies
-            for (String currentWord : currentWords) {
-                sentenceFrequencies.put(currentWord, sentenceFrequencies.get(currentWord) + 1.0);
+    /**
+
+     Reads stop words from file and adds them to stopList.
+     @param stopListFile is a list of stop words, one per line
+     @throws IOException if the file cannot be read
+     */
+    protected void readStopList(String stopListFile) throws IOException {
+        long started = STOP_LIST_LOAD.start();
+        try (BufferedReader br = openText(stopListFile)) {
+            String st = br.readLine();
+
+            while (st != null) {
+                String stopWord = st.toLowerCase();
+                stopList.add(stopWord);
+
+                st = br.readLine();
             }
+        }
+        STOP_LIST_LOAD.stop(started);
+    }
+
+
+    /**
+
+     Reads target words and their weighting/similarity measures from file and adds them to targetInfo.
+     @param inputFile is a file of <word> <weighting> <sim_measure> lines
+     @throws IOException if the file cannot be read
+     */
+    protected void readTargets(String inputFile) throws IOException {
+        try (BufferedReader br = openText(inputFile)) {
+            String st = br.readLine();
+
+            while (st != null) {
+                String[] words = st.split("\\s+");
+
+                if (!targetInfo.containsKey(words[0])) {
+                    ArrayList<String> infoList = new ArrayList<>();
+                    infoList.add(words[1]); // add weighting
+                    infoList.add(words[2]); // add similarity measure
+                    targetInfo.put(words[0], infoList);
+                }
 
-            st = br.readLine();
+                st = br.readLine();
+            }
         }
+    }
+
+
+    /**
+
+     Opens a small text file, such as the stop list or the target words, as UTF-8. Malformed bytes are
+     replaced rather than failing the read, the same as for the sentences.
+     @param path the path of the file
+     @return a reader of the file's lines
+     @throws IOException if the file cannot be opened
+     */
+    protected static BufferedReader openText(String path) throws IOException {
+        return new BufferedReader(new InputStreamReader(Files.newInputStream(Paths.get(path)), StandardCharsets.UTF_8));
+    }
+
 
-        //update idf vector
-        idfVector = new ArrayList<>(uniqueList.size());
-        for (int i = 0; i < uniqueList.size(); i++) {
-            Double logCalc = Math.log(numSentences/sentenceFrequencies.get(uniqueList.get(i)));
-            idfVector.add(i, logCalc);
+    /**
+
+     Reads the sentences file and builds the co-occurrence counts, sentence frequencies and idf vector.
+     @param sentences is a list of sentences/text fragments, one per line
+     @throws IOException if the file cannot be read
+     */
+    protected void build(String sentences) throws IOException {
+        // Read sentences from file and count co-occurrences, in parallel if a pool was given
+        CorpusIngester ingester = new CorpusIngester(stopList, StandardCharsets.UTF_8, window);
+        CooccurrenceCounts counts = ingester.ingest(sentences, pool);
+        snapshot = ModelSnapshot.fromCounts(counts, vectorCacheBytes, offHeap);
+    }
+
+
+    /**
+
+     Describes the size of the model and where its memory is: the co-occurrence counts and the arrays
+     indexed by word id on the heap, the counts kept outside it, and the heap the whole JVM is using.
+     @return a one-line summary
+     */
+    public String buildSummary() {
+        ModelSnapshot model = snapshot;
+        Runtime runtime = Runtime.getRuntime();
+        return String.format("%d words, %d co-occurrences: %.1f MB on heap, %.1f MB off heap (JVM heap in use: %.1f MB of %.1f MB)",
+                model.vocabulary.size(), model.matrix.nnz(), model.heapBytes() / 1e6, model.matrix.offHeapBytes() / 1e6,
+                (runtime.totalMemory() - runtime.freeMemory()) / 1e6, runtime.maxMemory() / 1e6);
+    }
+
+
+    /**
+
+     Adds a batch of new sentences to the model without reading the earlier sentences again. The
+     co-occurrence counts, sentence frequencies, number of sentences and idf vector are updated, and
+     normalized vectors are only rebuilt where the batch could have changed them. Queries that are
+     already running keep using the model as it was before the batch; later ones see the whole batch.
+     @param sentences is a file of new sentences, one per line
+     @throws IOException if the file cannot be read
+     */
+    public void addSentences(String sentences) throws IOException {
+        CooccurrenceCounts batch = new CorpusIngester(stopList, StandardCharsets.UTF_8, window).ingest(sentences, pool);
+        addBatch(batch);
+    }
+
+
+    /**
+
+     Adds a batch of new sentences to the model without reading the earlier sentences again, as for
+     addSentences(String).
+     @param sentences the new sentences, one per element
+     */
+    public void addSentences(Stream<String> sentences) {
+        CooccurrenceCounts batch = new CorpusIngester(stopList, StandardCharsets.UTF_8, window).ingest(sentences);
+        addBatch(batch);
+    }
+
+
+    /**
+
+     Applies the counts of a batch of new sentences and swaps in the updated snapshot.
+     @param batch the counts of the new sentences
+     */
+    protected void addBatch(CooccurrenceCounts batch) {
+        synchronized (updateLock) {
+            snapshot = snapshot.plus(batch, vectorCacheBytes);
+            // Results of the old snapshot are never used again
+            resultCache.clear();
         }
+    }
 
-        //print the number of unique words, number of words, and number of sentences
-        System.out.println(uniqueSet.size());
-        System.out.println(wordCount);
-        System.out.println(numSentences);
 
-        runStats();
+    /**
+
+     Prints the number of unique words, number of words, and number of sentences.
+     */
+    protected void printStats() {
+        ModelSnapshot model = snapshot;
+        System.out.println(model.vocabulary.size());
+        System.out.println(model.wordCount);
+        System.out.println((double) model.numSentences);
     }
 
 
@@ -190,80 +449,156 @@ public class Similarity {
 
      This method runs the similarity calculations for each target word in the targetInfo map and prints out the top 10 most similar words
      for each target word.
-     It loops through each target word in the targetInfo map, retrieves the weighting and similarity measure strings from the information list
-     for the current target word, and calls the runSims method with the current target word, weighting, and similarity measure.
+     It loops through each target word in the targetInfo map, in the order they appear in the input file, retrieves the weighting and
+     similarity measure strings from the information list for the current target word, and calculates the most similar words.
      For each target word, it also prints out the current target word, its weighting, and similarity measure.
+     If a pool was given, the target words are calculated in parallel but still printed in input order.
      */
     public void runStats() {
-        // Loop through each target word in the targetInfo map
+        if (pool == null) {
+            // Loop through each target word in the targetInfo map
+            for (String targetWord : targetInfo.keySet()) {
+                System.out.print(report(targetWord));
+            }
+            return;
+        }
+
+        // Start every target word on the pool, then print the reports in input order as they finish
+        ArrayList<ForkJoinTask<String>> reports = new ArrayList<>(targetInfo.size());
         for (String targetWord : targetInfo.keySet()) {
-            // Get the information list for the current target word
-            ArrayList<String> infoList = targetInfo.get(targetWord);
-            // Extract the weighting and similarity measure strings from the information list
-            String weighting = infoList.get(0);
-            String simMeasure = infoList.get(1);
+            reports.add(pool.submit(() -> report(targetWord)));
+        }
+        for (ForkJoinTask<String> report : reports) {
+            System.out.print(report.join());
+        }
+    }
 
-            // Print out the current target word, its weighting, and similarity measure
-            System.out.println("\nSIM: " + targetWord + " " + targetInfo.get(targetWord).get(0)
-                    + "\t" + targetInfo.get(targetWord).get(1));
 
-            // Call the runSims method with the current target word, weighting, and similarity measure
-            runSims(targetWord, weighting, simMeasure);
+    /**
+
+     Builds the printed output for one target word: a header with the target word, its weighting and
+     similarity measure, followed by its top 10 most similar words, or by a line saying why there are none
+     when the word is not in the vocabulary or the measure is unknown.
+     @param targetWord the target word to report on
+     @return the report, one line per printed line
+     */
+    protected String report(String targetWord) {
+        // Get the information list for the current target word
+        ArrayList<String> infoList = targetInfo.get(targetWord);
+        // Extract the weighting and similarity measure strings from the information list
+        String weighting = infoList.get(0);
+        String simMeasure = infoList.get(1);
+
+        // Add the current target word, its weighting, and similarity measure
+        StringBuilder out = new StringBuilder();
+        appendHeader(out, targetWord, weighting, simMeasure);
+
+        // Add the most similar words for the current target word, weighting, and similarity measure
+        try {
+            appendSims(out, targetWord, weighting, simMeasure, DEFAULT_K);
+        } catch (IllegalArgumentException e) {
+            // An unknown word or measure only costs its own line of the input
+            appendError(out, e);
         }
+        return out.toString();
     }
 
 
     /**
 
-     Retrieves the term frequency vector for a given word, represented as an ArrayList of Double objects.
-     The term frequency vector is created by iterating over each unique word in the corpus and retrieving the
-     count of the given word's occurrences. If the count is not present, the term frequency is set to 0.
-     @param word the word for which the term frequency vector should be retrieved
-     @return an ArrayList of Double objects representing the term frequency vector for the given word
-     */
-    public ArrayList<Double> getOccVec(String word) {
-        // Create a new ArrayList of Double objects to store the term frequencies
-        // for a given word
-        ArrayList<Double> occVec = new ArrayList<>(uniqueList.size());
-
-        // Declare a variable to store the term frequency for each unique word in the
-        // corpus
-        double wCount;
-
-        // Iterate over each unique word in the corpus
-        for (int i = 0; i < uniqueList.size(); i++) {
-            // If the term frequency map for the given word contains a count for the
-            // current unique word, retrieve it and store it in wCount
-            if (termFrequencies.get(word).get(uniqueList.get(i)) != null) {
-                wCount = termFrequencies.get(word).get(uniqueList.get(i));
-            } else {
-                // Otherwise, set wCount to 0
-                wCount = 0;
+     Runs the similarity calculations for all of the target words in the targetInfo map at once with
+     topKBatched, and prints the same reports as runStats in input order. Target words that are not in the
+     vocabulary, or that have an unknown measure, are left out of the batch and reported as runStats
+     reports them.
+     */
+    public void runStatsBatched() {
+        List<Query> queries = new ArrayList<>(targetInfo.size());
+        List<IllegalArgumentException> errors = new ArrayList<>(targetInfo.size()); // null for a valid line
+        for (String targetWord : targetInfo.keySet()) {
+            ArrayList<String> infoList = targetInfo.get(targetWord);
+            try {
+                if (snapshot.vocabulary.id(targetWord) < 0) {
+                    throw new IllegalArgumentException("Unknown target word: " + targetWord);
+                }
+                queries.add(new Query(targetWord, infoList.get(0), infoList.get(1), DEFAULT_K));
+                errors.add(null);
+            } catch (IllegalArgumentException e) {
+                errors.add(e);
             }
+        }
+        List<List<Neighbor>> results = topKBatched(queries);
 
-            // Add the term frequency for the current unique word to the occVec list
-            occVec.add(i, wCount);
+        StringBuilder out = new StringBuilder();
+        int line = 0;
+        int q = 0;
+        for (String targetWord : targetInfo.keySet()) {
+            ArrayList<String> infoList = targetInfo.get(targetWord);
+            appendHeader(out, targetWord, infoList.get(0), infoList.get(1));
+            IllegalArgumentException error = errors.get(line++);
+            if (error != null) {
+                appendError(out, error);
+                continue;
+            }
+            for (Neighbor neighbor : results.get(q++)) {
+                out.append(neighbor.word()).append("\t").append(neighbor.score()).append("\n");
+            }
         }
+        System.out.print(out);
+    }
+
 
-        // Return the list of term frequencies for the given word
-        return occVec;
+    /**
+
+     Appends the header line printed before a target word's most similar words.
+     */
+    protected static void appendHeader(StringBuilder out, String targetWord, String weighting, String simMeasure) {
+        out.append("\nSIM: ").append(targetWord).append(" ").append(weighting)
+                .append("\t").append(simMeasure).append("\n");
     }
 
 
     /**
 
-     This method takes an ArrayList of doubles and converts each value by multiplying it
-     with the corresponding IDF value for the word in the uniqueList of words.
-     @param vec an ArrayList of doubles representing a vector
+     Appends the line printed in place of a target word's most similar words when they cannot be found.
      */
-    public void convertToIDF(ArrayList<Double> vec) {
-        // iterate through the uniqueList of words
-        for (int j = 0; j < uniqueList.size(); j++) {
-            // retrieve the current value in the vector
-            double current = vec.get(j);
-            // multiply the current value by the IDF value for the corresponding word
-            vec.set(j, current * idfVector.get(j));
-        }
+    protected static void appendError(StringBuilder out, IllegalArgumentException error) {
+        out.append("ERROR: ").append(error.getMessage()).append("\n");
+    }
+
+
+    /**
+
+     Retrieves the term frequency vector for a given word, represented as a SparseVector.
+     The vector only holds the words that occur in the given word's context, keyed by their word id
+     and sorted by that id, with their co-occurrence count as the weight.
+     @param word the word for which the term frequency vector should be retrieved
+     @return a SparseVector representing the term frequency vector for the given word
+     */
+    public SparseVector getOccVec(String word) {
+        return getOccVec(snapshot.vocabulary.id(word));
+    }
+
+
+    /**
+
+     Retrieves the term frequency vector for the word with the given id.
+     @param wordId the id of the word for which the term frequency vector should be retrieved
+     @return a SparseVector representing the term frequency vector for the given word
+     */
+    public SparseVector getOccVec(int wordId) {
+        return snapshot.matrix.row(wordId);
+    }
+
+
+    /**
+
+     This method takes a SparseVector and converts each value by multiplying it
+     with the corresponding IDF value for the word with that id.
+     @param vec a SparseVector representing a vector
+     */
+    public void convertToIDF(SparseVector vec) {
+        // multiply each non-zero value by the IDF value for the corresponding word
+        vec.multiply(snapshot.idfVector);
     }
 
 
@@ -271,154 +606,545 @@ public class Similarity {
 
      Calculates and prints out the top 10 most similar words to a target word using the selected weighting and similarity measure.
      @param targetWord the word to compare against
-     @param weighting the weighting method to use, either "RAW" or "IDF"
+     @param weighting the weighting method to use: "IDF" for TF-IDF, "PPMI" for PPMI, anything else for raw TF
      @param simMeasure the similarity measure to use, either "L1", "EUCLIDEAN", or "COSINE"
      */
     public void runSims(String targetWord, String weighting, String simMeasure) {
-        // create a list of words to compare against
-        ArrayList<String> wordsList = new ArrayList<>(uniqueList.size());
-        wordsList.addAll(uniqueList);
-        wordsList.remove(targetWord);
+        runSims(targetWord, weighting, simMeasure, DEFAULT_K);
+    }
+
 
-        // create a list of distances, initialized to 0
-        ArrayList<Double> distanceList = new ArrayList<>(Collections.nCopies(wordsList.size(), 0.0));
+    /**
 
-        // get the occurrence vector for the target word
-        ArrayList<Double> vec1 = getOccVec(targetWord);
-        ArrayList<Double> vec2 = new ArrayList<>();
+     Calculates and prints out the k most similar words to a target word using the selected weighting and similarity measure.
+     @param targetWord the word to compare against
+     @param weighting the weighting method to use: "IDF" for TF-IDF, "PPMI" for PPMI, anything else for raw TF
+     @param simMeasure the similarity measure to use, either "L1", "EUCLIDEAN", or "COSINE"
+     @param k the number of words to print
+     */
+    public void runSims(String targetWord, String weighting, String simMeasure, int k) {
+        StringBuilder out = new StringBuilder();
+        appendSims(out, targetWord, weighting, simMeasure, k);
+        System.out.print(out);
+    }
+
+
+    /**
 
-        // if using IDF weighting, convert the target word vector to IDF
-        if (weighting.equals("IDF")) {
-            convertToIDF(vec1);
+     Calculates the k most similar words to a target word and appends them, one "word\tscore" line each.
+     @param out the builder to append the words to
+     @param targetWord the word to compare against
+     @param weighting the weighting method to use: "IDF" for TF-IDF, "PPMI" for PPMI, anything else for raw TF
+     @param simMeasure the similarity measure to use, either "L1", "EUCLIDEAN", or "COSINE"
+     @param k the number of words to append
+     */
+    protected void appendSims(StringBuilder out, String targetWord, String weighting, String simMeasure, int k) {
+        for (Neighbor neighbor : topKEmbedded(new Query(targetWord, weighting, simMeasure, k))) {
+            out.append(neighbor.word()).append("\t").append(neighbor.score()).append("\n");
         }
+    }
 
-        // normalize the occurrence vector of the target word
-        normVec(vec1);
 
-        // compare the target word to each word in the list using the selected similarity measure
-        if (simMeasure.equals("L1")) {
-            for (String word : wordsList){
-                if(!word.equals(targetWord)) {
-                    vec2 = getOccVec(word);
-                    if (weighting.equals("IDF")) {
-                        convertToIDF(vec2);
-                    }
+    /**
 
-                    // normalize the occurrence vector of the current word
-                    normVec(vec2);
+     Finds the k most similar words to a target word.
+     @param targetWord the word to compare against
+     @param weighting the weighting method to use: "IDF" for TF-IDF, "PPMI" for PPMI, anything else for raw TF
+     @param simMeasure the similarity measure to use, either "L1", "EUCLIDEAN", or "COSINE"
+     @param k the number of words to return
+     @return the k most similar words, most similar first
+     @throws IllegalArgumentException if the target word is not in the vocabulary or the measure is unknown
+     */
+    public List<Neighbor> topK(String targetWord, String weighting, String simMeasure, int k) {
+        return topK(new Query(targetWord, weighting, simMeasure, k));
+    }
 
-                    // calculate the L1 distance between the target word vector and the current word vector
-                    distanceList.set(wordsList.indexOf(word), getL1Distance(vec1, vec2));
-                }
+
+    /**
+
+     Finds the most similar words to the target word of a query.
+     @param query the target word, weighting, measure and number of words to return
+     @return the most similar words, most similar first
+     @throws IllegalArgumentException if the target word is not in the vocabulary
+     */
+    public List<Neighbor> topK(Query query) {
+        return topK(Collections.singletonList(query)).get(0);
+    }
+
+
+    /**
+
+     Finds the most similar words for a batch of queries in a single pass over the vocabulary: each
+     candidate word's vectors are looked up once and scored against every target word in the batch,
+     instead of once per target word. Queries whose results are in the result cache are answered from it
+     and left out of the pass, and the results of the others are added to it.
+     @param queries the queries to answer
+     @return the most similar words for each query, in the same order as the queries; the lists are shared
+             with the cache and cannot be modified
+     @throws IllegalArgumentException if any of the target words is not in the vocabulary
+     */
+    public List<List<Neighbor>> topK(List<Query> queries) {
+        long started = QUERY_LATENCY.start();
+        try {
+            return cachedTopK(queries);
+        } finally {
+            QUERY_LATENCY.stop(started);
+        }
+    }
+
+
+    /**
+
+     Answers queries from the result cache where it can, as for topK, without timing them.
+     */
+    protected List<List<Neighbor>> cachedTopK(List<Query> queries) {
+        ModelSnapshot model = snapshot;
+        ResultCache cache = resultCache;
+        List<List<Neighbor>> results = new ArrayList<>(Collections.nCopies(queries.size(), null));
+        List<Query> misses = new ArrayList<>();
+        List<Integer> missSlots = new ArrayList<>(); // where each missed query's result goes
+        for (int q = 0; q < queries.size(); q++) {
+            List<Neighbor> cached = cache.get(model, queries.get(q));
+            if (cached != null) {
+                results.set(q, cached);
+            } else {
+                misses.add(queries.get(q));
+                missSlots.add(q);
             }
         }
+        if (misses.isEmpty()) {
+            return results;
+        }
 
-        if (simMeasure.equals("EUCLIDEAN")) {
-            for (String word : wordsList){
-                if(!word.equals(targetWord)) {
-                    vec2 = getOccVec(word);
-                    if (weighting.equals("IDF")) {
-                        convertToIDF(vec2);
-                    }
+        List<List<Neighbor>> answered = answer(model, misses, false);
+        for (int i = 0; i < misses.size(); i++) {
+            results.set(missSlots.get(i), cache.put(model, misses.get(i), answered.get(i)));
+        }
+        return results;
+    }
 
-                    // normalize the occurrence vector of the current word
-                    normVec(vec2);
 
-                    // calculate the Euclidean distance between the target word vector and the current word vector
-                    distanceList.set(wordsList.indexOf(word), getEuclideanDistance(vec1, vec2));
-                }
+    /**
+
+     Finds the most similar words for a batch of queries as one sparse matrix product of the target
+     vectors with the transposed candidate vectors; see BatchScorer. This pays off over topK when there
+     are many target words. COSINE scores are the same as topK's, while EUCLIDEAN and L1 scores are
+     calculated from the vector norms and can differ from topK's in the last few bits.
+     @param queries the queries to answer
+     @return the most similar words for each query, in the same order as the queries
+     @throws IllegalArgumentException if any of the target words is not in the vocabulary
+     */
+    public List<List<Neighbor>> topKBatched(List<Query> queries) {
+        return answer(snapshot, queries, true);
+    }
+
+
+    /**
+
+     Answers a batch of queries against a snapshot.
+     @param model the snapshot to answer from
+     @param queries the queries to answer
+     @param multiply true to score them as a sparse matrix product, false to score them candidate by candidate
+     @return the most similar words for each query, in the same order as the queries
+     @throws IllegalArgumentException if any of the target words is not in the vocabulary
+     */
+    protected List<List<Neighbor>> answer(ModelSnapshot model, List<Query> queries, boolean multiply) {
+        Vocabulary vocabulary = model.vocabulary;
+        Query[] batch = queries.toArray(new Query[0]);
+        int[] targetIds = new int[batch.length];
+        SparseVector[] targets = new SparseVector[batch.length];
+        for (int q = 0; q < batch.length; q++) {
+            targetIds[q] = vocabulary.id(batch[q].word());
+            if (targetIds[q] < 0) {
+                throw new IllegalArgumentException("Unknown target word: " + batch[q].word());
             }
+            targets[q] = model.vectors.get(targetIds[q], batch[q].weighting());
         }
 
-        if (simMeasure.equals("COSINE")) {
-            for (String word : wordsList){
-                if(!word.equals(targetWord)) {
-                    vec2 = getOccVec(word);
-                    if (weighting.equals("IDF")) {
-                        convertToIDF(vec2);
-                    }
+        // score every other word in the vocabulary against the target words
+        long started = QUERY_SCORE.start();
+        TopK[] tops = multiply
+                ? new BatchScorer(model.vectors, vocabulary.size()).score(batch, targetIds, targets, pool)
+                : score(model, batch, targetIds, targets);
+        QUERY_SCORE.stop(started);
+        QUERIES.add(batch.length);
+
+        // the most similar words, best first
+        List<List<Neighbor>> results = new ArrayList<>(batch.length);
+        for (TopK top : tops) {
+            long ranking = QUERY_RANK.start();
+            double[] topScores = new double[top.size()];
+            int[] topIds = new int[top.size()];
+            int n = top.drainSorted(topScores, topIds);
+            List<Neighbor> neighbors = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                neighbors.add(new Neighbor(vocabulary.word(topIds[i]), topIds[i], topScores[i]));
+            }
+            results.add(neighbors);
+            QUERY_RANK.stop(ranking);
+        }
+        return results;
+    }
+
+
+    /**
 
-                    // normalize the occurrence vector of the current word
-                    normVec(vec2);
+     Scores a batch of queries candidate by candidate. COSINE queries only score the words that share a
+     context with their target, gathered from the snapshot's ContextIndex, since every other word scores 0;
+     the other queries share one pass over the whole vocabulary. With a pool, each COSINE query is scored
+     by a task of its own while the pass runs.
+     @param model the snapshot being queried
+     @param queries the queries to score for
+     @param targetIds the id of each query's target word
+     @param targets the normalized vector of each query's target word
+     @return the best words for each query
+     */
+    protected TopK[] score(ModelSnapshot model, Query[] queries, int[] targetIds, SparseVector[] targets) {
+        TopK[] tops = new TopK[queries.length];
+        ForkJoinTask<?>[] candidateTasks = new ForkJoinTask<?>[queries.length]; // COSINE queries running on the pool
+        int scanned = 0; // number of queries that need the full pass
+        for (int q = 0; q < queries.length; q++) {
+            if (queries[q].measure() != Measure.COSINE) {
+                scanned++;
+            } else if (pool == null) {
+                tops[q] = scoreCandidates(model, queries[q], targetIds[q], targets[q]);
+            } else {
+                int slot = q;
+                candidateTasks[q] = ForkJoinTask.adapt(
+                        () -> tops[slot] = scoreCandidates(model, queries[slot], targetIds[slot], targets[slot]));
+                // Fork if this thread is already one of the pool's workers, so it can help with the tasks
+                if (ForkJoinTask.getPool() == pool) {
+                    candidateTasks[q].fork();
+                } else {
+                    pool.execute(candidateTasks[q]);
+                }
+            }
+        }
 
-                    // calculate the cosine distance between the target word vector and the current word vector
-                    distanceList.set(wordsList.indexOf(word), getCosineDistance(vec1, vec2));
+        if (scanned > 0) {
+            Query[] scanQueries = new Query[scanned];
+            int[] scanIds = new int[scanned];
+            SparseVector[] scanTargets = new SparseVector[scanned];
+            int[] slots = new int[scanned]; // where each scanned query's result goes
+            for (int q = 0, i = 0; q < queries.length; q++) {
+                if (queries[q].measure() != Measure.COSINE) {
+                    scanQueries[i] = queries[q];
+                    scanIds[i] = targetIds[q];
+                    scanTargets[i] = targets[q];
+                    slots[i++] = q;
                 }
             }
+            TopK[] scanTops = score(model.vectors, scanQueries, scanIds, scanTargets, 0, model.vocabulary.size());
+            for (int i = 0; i < scanned; i++) {
+                tops[slots[i]] = scanTops[i];
+            }
+        }
+        for (ForkJoinTask<?> task : candidateTasks) {
+            if (task != null) {
+                task.join();
+            }
         }
+        return tops;
+    }
 
-        // sort the distance list
-        modQuickSort(distanceList, 0, distanceList.size() - 1, wordsList);
 
-        // reverse the list if using L1 or Euclidean distance measure
-        if (simMeasure.equals("L1") || simMeasure.equals("EUCLIDEAN")) {
-            Collections.reverse(distanceList);
-            Collections.reverse(wordsList);
+    /**
+
+     Scores a COSINE query against the words that share a context with its target. The result is the same
+     as scoring the whole vocabulary: only candidates that score above 0 are offered, and if fewer than k
+     do, the rest of the k are the lowest ids among all the other words, which score 0 and which TopK would
+     keep on ties. That includes candidates scoring exactly 0, as they do when the contexts they share
+     with the target have a weight of 0 on one side, such as a PPMI clipped to 0 or an idf of 0. Only when
+     maxContextPostings prunes contexts can words that would have made the top k be missed. With a pool,
+     a long list of candidates is split into ranges with CandidateTask and the words that score 0 are
+     added after the ranges are merged.
+     @param model the snapshot being queried
+     @param query the query, which must use COSINE
+     @param targetId the id of the query's target word
+     @param target the normalized vector of the query's target word
+     @return the best words for the query
+     */
+    protected TopK scoreCandidates(ModelSnapshot model, Query query, int targetId, SparseVector target) {
+        int[] candidates = model.contextIndex().candidates(target, targetId, maxContextPostings);
+        double targetLength = SparseVector.l2Length(target);
+        TopK top;
+        if (pool == null || candidates.length <= CandidateTask.THRESHOLD) {
+            top = scoreCandidateRange(model.vectors, query, target, targetLength, candidates, 0, candidates.length);
+        } else {
+            CandidateTask task = new CandidateTask(model.vectors, query, target, targetLength, candidates, 0,
+                    candidates.length);
+            top = ForkJoinTask.getPool() == pool ? task.invoke() : pool.invoke(task);
         }
 
-        // print out the top 10 most similar words
-        if (distanceList.size() < 10) {
-            // if there are less than 10 words, print out all of them
-            Collections.reverse(distanceList);
-            Collections.reverse(wordsList);
-            for (int k = 0; k < distanceList.size(); k++){
-                System.out.println(wordsList.get(k) + "\t" + distanceList.get(k));
+        // Pad with the words that score 0, lowest ids first. Every word kept so far scored above 0, and while
+        // the selector is not full none of them has been pushed out, so those are all the words to skip.
+        int[] kept = Arrays.copyOf(top.ids, top.size());
+        Arrays.sort(kept);
+        int words = model.vocabulary.size();
+        for (int id = 0; id < words && top.size() < query.k(); id++) {
+            if (id != targetId && Arrays.binarySearch(kept, id) < 0) {
+                top.offer(0.0, id);
             }
-        } else {
-            // if there are more than 10 words, print out the top 10
-            for (int i = distanceList.size() - 1; i > distanceList.size() - 11; i--){
-                System.out.println(wordsList.get(i) + "\t" + distanceList.get(i));
+        }
+        return top;
+    }
+
+
+    /**
+
+     Scores a range of a COSINE query's candidates on the calling thread, keeping only those that score
+     above 0.
+     @param vectors the normalized vectors of the snapshot being queried
+     @param query the query, which must use COSINE
+     @param target the normalized vector of the query's target word
+     @param targetLength the L2 length of target
+     @param candidates the ids of the words that share a context with the target
+     @param from the index of the first candidate to score
+     @param to one past the index of the last candidate to score
+     @return the best candidates of the range that score above 0
+     */
+    protected static TopK scoreCandidateRange(VectorStore vectors, Query query, SparseVector target,
+                                              double targetLength, int[] candidates, int from, int to) {
+        Measure measure = query.measure();
+        TopK top = new TopK(query.k(), measure);
+        for (int c = from; c < to; c++) {
+            SparseVector candidate = vectors.get(candidates[c], query.weighting());
+            double score = measure.score(target, targetLength, candidate, SparseVector.l2Length(candidate));
+            if (score > 0) {
+                top.offer(score, candidates[c]);
             }
         }
+        return top;
     }
 
 
     /**
 
-     Calculates the L1 distance between two vectors.
-     @param vector1 first vector
-     @param vector2 second vector
-     @return the L1 distance between the two vectors
-     @throws IllegalArgumentException if the vectors are not of equal size
+     Replaces the cache of query results with an empty one of the given size.
+     @param maxEntries the most results to keep; 0 turns caching off
+     @throws IllegalArgumentException if maxEntries is negative
+     */
+    public void setResultCacheSize(int maxEntries) {
+        resultCache = new ResultCache(maxEntries);
+    }
+
+    /**
+     * @return the cache of query results, for its hit and miss counts
+     */
+    public ResultCache resultCache() {
+        return resultCache;
+    }
+
+
+    /**
+
+     Sets how common a context may be and still be used to gather the candidates of COSINE queries.
+     Skipping the contexts that co-occur with most of the vocabulary keeps the candidates few, but the
+     words that only share such contexts with a target are then not scored, so results become approximate.
+     The result cache is replaced with an empty one, so no result computed under the old setting is served
+     under the new one.
+     @param maxPostings the most words a context may co-occur with, or Integer.MAX_VALUE for exact results
+     @throws IllegalArgumentException if maxPostings is negative
+     */
+    public void setMaxContextPostings(int maxPostings) {
+        if (maxPostings < 0) {
+            throw new IllegalArgumentException("maxPostings must not be negative");
+        }
+        maxContextPostings = maxPostings;
+        // Queries already running keep the old cache, so their results cannot land in the new one
+        resultCache = new ResultCache(resultCache.maxEntries);
+    }
+
+
+    /**
+
+     Builds an approximate nearest-neighbour index over the current snapshot's vectors of one weighting,
+     for topKApprox to use. It replaces any index built before for that weighting.
+     @param weighting the weighting of the vectors to index
+     @param tables the number of hash tables
+     @param bits the number of bits in each signature
+     @return the index, which can be saved to a file
+     */
+    public LshIndex buildIndex(Weighting weighting, int tables, int bits) {
+        LshIndex index = LshIndex.build(snapshot, weighting, tables, bits, LshIndex.DEFAULT_SEED, pool);
+        indexes[weighting.ordinal()] = index;
+        return index;
+    }
+
+
+    /**
+
+     Loads an index saved from a model identical to this one, for topKApprox to use.
+     @param indexFile the index file to load
+     @throws IOException if the file cannot be read or was built for a different model
+     */
+    public void loadIndex(String indexFile) throws IOException {
+        LshIndex index = LshIndex.load(indexFile, snapshot);
+        indexes[index.weighting().ordinal()] = index;
+    }
+
+
+    /**
+
+     Finds the most similar words to the target word of a query with the approximate index of the query's
+     weighting. Falls back to the exact topK if there is no such index, or if sentences have been added
+     since it was built.
+     @param query the target word, weighting, measure and number of words to return
+     @param probes the number of extra buckets to look in per hash table; more probes find more of the true
+                   neighbours but take longer
+     @return the most similar words found, most similar first
+     @throws IllegalArgumentException if the target word is not in the vocabulary
+     */
+    public List<Neighbor> topKApprox(Query query, int probes) {
+        LshIndex index = indexes[query.weighting().ordinal()];
+        if (index == null || index.model != snapshot) {
+            return topK(query);
+        }
+        return index.query(query, probes);
+    }
+
+
+    /**
+
+     Projects the current snapshot's vectors of one weighting to dense embeddings. From then on, until
+     sentences are added, runSims and runStats score target words of that weighting on the embeddings
+     instead of the sparse vectors.
+     @param weighting the weighting of the vectors to project
+     @param dimensions the number of dimensions of the embeddings
+     @return the table of embeddings
+     */
+    public EmbeddingTable buildEmbeddings(Weighting weighting, int dimensions) {
+        EmbeddingTable table = EmbeddingTable.project(snapshot, weighting, dimensions, EmbeddingTable.DEFAULT_SEED, pool);
+        embeddings[weighting.ordinal()] = table;
+        return table;
+    }
+
+
+    /**
+
+     Finds the most similar words to the target word of a query on the embeddings of the query's weighting.
+     Falls back to the exact topK if there are no such embeddings, or if sentences have been added since
+     they were built.
+     @param query the target word, weighting, measure and number of words to return
+     @return the most similar words, most similar first
+     @throws IllegalArgumentException if the target word is not in the vocabulary
+     */
+    public List<Neighbor> topKEmbedded(Query query) {
+        EmbeddingTable table = embeddings[query.weighting().ordinal()];
+        if (table == null || table.model != snapshot) {
+            return topK(query);
+        }
+        return table.topK(query);
+    }
+
+
+    /**
+
+     Scores a range of word ids against a batch of target words, keeping the best words for each.
+     Each target word itself is skipped.
+     @param vectors the normalized vectors of the snapshot being queried
+     @param queries the queries to score for
+     @param targetIds the id of each query's target word
+     @param targets the normalized vector of each query's target word
+     @param from the first word id to score
+     @param to one past the last word id to score
+     @return the best words of the range for each query
      */
-    public double getL1Distance(ArrayList<Double> vector1, ArrayList<Double> vector2) {
-        // Check if the vectors are of equal size
-        if (vector1.size() != vector2.size()) {
-            throw new IllegalArgumentException("Vectors must be of equal size");
+    protected TopK[] score(VectorStore vectors, Query[] queries, int[] targetIds, SparseVector[] targets,
+                           int from, int to) {
+        if (pool == null || to - from <= ScoreTask.THRESHOLD) {
+            return scoreRange(vectors, queries, targetIds, targets, from, to);
         }
-        double sum = 0;
-        // Calculate the L1 distance by summing the absolute differences of each corresponding element
-        for (int i = 0; i < vector1.size(); i++) {
-            double diff = vector1.get(i) - vector2.get(i);
-            sum += Math.abs(diff);
+
+        // Split the range up over the pool, joining in if this thread is already one of its workers
+        ScoreTask task = new ScoreTask(vectors, queries, targetIds, targets, from, to);
+        if (ForkJoinTask.getPool() == pool) {
+            return task.invoke();
         }
-        return sum;
+        return pool.invoke(task);
     }
 
 
     /**
-     * Calculates the Euclidean distance between two vectors of doubles.
-     *
-     * @param vector1 the first vector of doubles
-     * @param vector2 the second vector of doubles
-     * @return the Euclidean distance between the two vectors
-     * @throws IllegalArgumentException if the two vectors are not of equal size
+
+     Scores a range of word ids against a batch of target words on the calling thread. The vectors of
+     each candidate word are only looked up once for the whole batch. A single query is scored by its
+     measure's own loop instead.
+     @param vectors the normalized vectors of the snapshot being queried
+     @param queries the queries to score for
+     @param targetIds the id of each query's target word, which is skipped for that query
+     @param targets the normalized vector of each query's target word
+     @param from the first word id to score
+     @param to one past the last word id to score
+     @return the best words of the range for each query
      */
-    public double getEuclideanDistance(ArrayList<Double> vector1, ArrayList<Double> vector2) {
-        // Check that the two vectors have the same size
-        if (vector1.size() != vector2.size()) {
-            throw new IllegalArgumentException("Vectors must be of equal size");
+    protected static TopK[] scoreRange(VectorStore vectors, Query[] queries, int[] targetIds, SparseVector[] targets,
+                                       int from, int to) {
+        TopK[] tops = new TopK[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            tops[q] = new TopK(queries[q].k(), queries[q].measure());
+        }
+        if (queries.length == 1) {
+            // Nothing to share between targets, so use the measure's own loop
+            queries[0].measure().scan(targets[0], targetIds[0], vectors, queries[0].weighting(), from, to, tops[0]);
+            return tops;
+        }
+        SparseVector[] candidates = new SparseVector[Weighting.values().length]; // candidate's vector per weighting
+        double[] candidateLengths = new double[Weighting.values().length]; // its L2 length, or NaN until needed
+        // Every target is compared with the whole range, so its length is only computed once
+        double[] targetLengths = new double[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            targetLengths[q] = queries[q].measure().usesLengths() ? SparseVector.l2Length(targets[q]) : Double.NaN;
         }
 
-        // Calculate the sum of squared differences between corresponding elements of the two vectors
-        double sum = 0;
-        for (int i = 0; i < vector1.size(); i++) {
-            double diff = vector1.get(i) - vector2.get(i);
-            sum += diff * diff;
+        for (int id = from; id < to; id++) {
+            Arrays.fill(candidates, null);
+            for (int q = 0; q < queries.length; q++) {
+                if (id == targetIds[q]) {
+                    continue;
+                }
+                int weighting = queries[q].weighting().ordinal();
+                if (candidates[weighting] == null) {
+                    candidates[weighting] = vectors.get(id, queries[q].weighting());
+                    candidateLengths[weighting] = Double.NaN;
+                }
+                Measure measure = queries[q].measure();
+                if (measure.usesLengths()) {
+                    if (Double.isNaN(candidateLengths[weighting])) {
+                        candidateLengths[weighting] = SparseVector.l2Length(candidates[weighting]);
+                    }
+                    tops[q].offer(measure.score(targets[q], targetLengths[q], candidates[weighting],
+                            candidateLengths[weighting]), id);
+                } else {
+                    tops[q].offer(measure.score(targets[q], candidates[weighting]), id);
+                }
+            }
         }
+        return tops;
+    }
+
+
+    /**
+
+     Calculates the L1 distance between two vectors.
+     @param vector1 first vector
+     @param vector2 second vector
+     @return the L1 distance between the two vectors
+     */
+    public double getL1Distance(SparseVector vector1, SparseVector vector2) {
+        return SparseVector.l1Distance(vector1, vector2);
+    }
 
-        // Take the square root of the sum of squared differences to get the Euclidean distance
-        return Math.sqrt(sum);
+
+    /**
+     * Calculates the Euclidean distance between two vectors.
+     *
+     * @param vector1 the first vector
+     * @param vector2 the second vector
+     * @return the Euclidean distance between the two vectors
+     */
+    public double getEuclideanDistance(SparseVector vector1, SparseVector vector2) {
+        return SparseVector.euclideanDistance(vector1, vector2);
     }
 
 
@@ -428,27 +1154,9 @@ public class Similarity {
      @param vector1 the first vector
      @param vector2 the second vector
      @return the cosine distance between the two vectors
-     @throws IllegalArgumentException if the two vectors are not of the same length
      */
-    public double getCosineDistance(ArrayList<Double> vector1, ArrayList<Double> vector2) {
-        // Throw an exception if the vectors are not of the same length
-        if (vector1.size() != vector2.size()) {
-            throw new IllegalArgumentException("Vectors must be of the same length.");
-        }
-        double dotProduct = 0.0;
-        double norm1 = 0.0;
-        double norm2 = 0.0;
-        // Calculate the dot product, and the norm of each vector
-        for (int i = 0; i < vector1.size(); i++) {
-            dotProduct += vector1.get(i) * vector2.get(i);
-            norm1 += vector1.get(i) * vector1.get(i);
-            norm2 += vector2.get(i) * vector2.get(i);
-        }
-        // Check for divide-by-zero error and return the cosine distance
-        if (norm1 == 0.0 || norm2 == 0.0) {
-            return 0;
-        }
-        return dotProduct / (Math.sqrt(norm1) * Math.sqrt(norm2));
+    public double getCosineDistance(SparseVector vector1, SparseVector vector2) {
+        return SparseVector.cosine(vector1, vector2);
     }
 
 
@@ -458,12 +1166,8 @@ public class Similarity {
      @param vec the vector to calculate the length of
      @return the L2 length of the vector
      */
-    public double getL2Length(ArrayList<Double> vec) {
-        double sumOfSquares = 0.0;
-        for (Double d : vec) {
-            sumOfSquares += d * d;
-        }
-        return Math.sqrt(sumOfSquares);
+    public double getL2Length(SparseVector vec) {
+        return SparseVector.l2Length(vec);
     }
 
 
@@ -472,16 +1176,8 @@ public class Similarity {
      Normalizes the input vector in-place to have a Euclidean L2-norm of 1.
      @param vec the vector to be normalized
      */
-    public void normVec(ArrayList<Double> vec) {
-        // Calculate the Euclidean L2-norm of the vector
-        double l2Length = getL2Length(vec);
-        // Check if the L2-norm is zero to avoid division by zero
-        if (l2Length != 0) {
-        // Divide each element in the vector by the L2-norm
-            for (int i = 0; i < vec.size(); i++) {
-                vec.set(i, vec.get(i) / l2Length);
-            }
-        }
+    public void normVec(SparseVector vec) {
+        vec.normalize();
     }
 
 
@@ -557,10 +1253,91 @@ public class Similarity {
      @return true if the string consists only of letters, false otherwise
      */
     public boolean isAlpha(String word) {
-        return word.matches("[a-zA-Z]+");
+        return CorpusIngester.isAlpha(word);
     }
 
+    /**
+
+     Runs the similarity calculations. With no arguments, the files below are used. Otherwise the arguments are one of:
+         <stoplist> <sentences> <input>                      build the model and run the target words in <input>
+         --save <model> <stoplist> <sentences> <input>       the same, then save the model to <model>
+         --external <model> <stoplist> <sentences> <input>   build the model out of core into <model>, then run <input> on it
+         --load <model> <input>                              load a saved model and run the target words in <input>
+         --batch <stoplist> <sentences> <input>              build the model and run all target words as one batch
+         --batch --load <model> <input>                      load a saved model and run all target words as one batch
+         --embed <dimensions> <stoplist> <sentences> <input> build the model and run the target words on dense embeddings
+     <sentences> may be gzip-compressed, or "-" to read them from standard input. Any of these may be
+     preceded by --metrics <file>, which registers Metrics.global() over JMX while the run lasts and
+     writes it to <file> as JSON lines at the end.
+     */
     public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && args[0].equals("--metrics")) {
+            Metrics.global().registerMBean();
+            try {
+                main(Arrays.copyOfRange(args, 2, args.length));
+            } finally {
+                Metrics.global().writeJsonLines(args[1]);
+            }
+            return;
+        }
+        if (args.length == 5 && args[0].equals("--embed")) {
+            Similarity model = fromCorpus(args[2], args[3], DEFAULT_VECTOR_CACHE_BYTES, null);
+            for (Weighting weighting : Weighting.values()) {
+                model.buildEmbeddings(weighting, Integer.parseInt(args[1]));
+            }
+            model.readTargets(args[4]);
+            model.printStats();
+            model.runStats();
+            System.err.println(model.buildSummary());
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--batch")) {
+            Similarity model;
+            if (args.length == 4 && args[1].equals("--load")) {
+                model = fromModelFile(args[2], DEFAULT_VECTOR_CACHE_BYTES, null);
+            } else if (args.length == 4) {
+                model = fromCorpus(args[1], args[2], DEFAULT_VECTOR_CACHE_BYTES, null);
+            } else {
+                System.err.println("Usage: Similarity --batch (<stoplist> <sentences> | --load <model>) <input>");
+                System.exit(1);
+                return;
+            }
+            model.readTargets(args[3]);
+            model.printStats();
+            model.runStatsBatched();
+            System.err.println(model.buildSummary());
+            return;
+        }
+        if (args.length == 5 && args[0].equals("--external")) {
+            Similarity model = fromCorpusOnDisk(args[2], args[3], args[1], SpillingIngester.DEFAULT_SPILL_BYTES,
+                    DEFAULT_VECTOR_CACHE_BYTES, null);
+            model.readTargets(args[4]);
+            model.printStats();
+            model.runStats();
+            System.err.println(model.buildSummary());
+            return;
+        }
+        if (args.length == 5 && args[0].equals("--save")) {
+            Similarity model = new Similarity(args[2], args[3], args[4]);
+            System.err.println(model.buildSummary());
+            model.save(args[1]);
+            return;
+        }
+        if (args.length == 3 && args[0].equals("--load")) {
+            load(args[1], args[2], DEFAULT_VECTOR_CACHE_BYTES, null);
+            return;
+        }
+        if (args.length == 3) {
+            System.err.println(new Similarity(args[0], args[1], args[2]).buildSummary());
+            return;
+        }
+        if (args.length != 0) {
+            System.err.println("Usage: Similarity [--metrics <file>] [[--save <model> | --external <model>] <stoplist> <sentences> <input>"
+                    + " | --load <model> <input> | --batch (<stoplist> <sentences> | --load <model>) <input>"
+                    + " | --embed <dimensions> <stoplist> <sentences> <input>]");
+            System.exit(1);
+        }
+
 //        String stopListFile = "/Users/ezraford/Desktop/School/CS 159/NLP-Word-Similarity/data/stoplist";
 //        String sentences = "/Users/ezraford/Desktop/School/CS 159/NLP-Word-Similarity/data/sentences";
 //        String inputFile = "/Users/ezraford/Desktop/School/CS 159/NLP-Word-Similarity/data/test";
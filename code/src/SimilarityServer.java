@@ -0,0 +1,311 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Serves similarity queries over HTTP from a model that is built or loaded once at startup. Results are
+ * returned as JSON:
+ *
+ *     GET  /topk?word=<word>&weighting=<weighting>&measure=<measure>&k=<k>[&probes=<probes>]
+ *          the k most similar words to one target word; weighting defaults to TF, measure to COSINE and
+ *          k to 10. Queries from concurrent requests are batched together by a QueryBatcher. With probes,
+ *          the query is answered from the model's approximate index instead (see Similarity.topKApprox).
+ *     POST /topk
+ *          a batch of queries in the body, one "<word> <weighting> <measure> [k]" line each, answered in a
+ *          single pass; the response is an array with one result per line
+ *     GET  /stats
+ *          the number of unique words, words and sentences in the model, and the hits and misses of its
+ *          result cache
+ *     GET  /metrics
+ *          every counter, gauge and timer of Metrics.global(), one JSON object per line
+ *
+ * A bad request, such as an unknown target word, is answered with status 400 and an "error" message.
+ *
+ * Usage: SimilarityServer <port> (--load <model> | [--off-heap] <stoplist> <sentences>) [index file ...]
+ *
+ * With --off-heap, the co-occurrence counts of a model built from a corpus are kept outside the heap. The
+ * same metrics are also registered over JMX as Metrics.OBJECT_NAME.
+ */
+public class SimilarityServer implements AutoCloseable {
+    // largest k a query may ask for, so a single request cannot allocate without bound
+    protected static final int MAX_K = 1000;
+
+    protected final Similarity model;
+    protected final QueryBatcher batcher;
+    protected final HttpServer server;
+    protected final ExecutorService executor; // threads the requests are handled on
+
+    /**
+     * @param model the model to answer queries from
+     * @param port the port to listen on, or 0 for any free port
+     * @param threads the number of requests to handle at once
+     * @throws IOException if the server cannot listen on the port
+     */
+    public SimilarityServer(Similarity model, int port, int threads) throws IOException {
+        this.model = model;
+        this.batcher = new QueryBatcher(model);
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        server.createContext("/topk", this::handleTopK);
+        server.createContext("/stats", this::handleStats);
+        server.createContext("/metrics", this::handleMetrics);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        batcher.close();
+        executor.shutdown();
+    }
+
+
+    /**
+
+     Answers GET /topk with one query through the batcher, and POST /topk with a batch of queries.
+     */
+    protected void handleTopK(HttpExchange exchange) throws IOException {
+        try {
+            if (exchange.getRequestMethod().equals("GET")) {
+                HashMap<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                String word = params.get("word");
+                if (word == null) {
+                    throw new IllegalArgumentException("Missing parameter: word");
+                }
+                Query query = query(word, params.getOrDefault("weighting", "TF"),
+                        params.getOrDefault("measure", "COSINE"), params.get("k"));
+                String probes = params.get("probes");
+                List<Neighbor> neighbors = probes == null
+                        ? batcher.submit(query).get() : model.topKApprox(query, parseInt("probes", probes));
+
+                StringBuilder json = new StringBuilder();
+                appendResult(json, query, neighbors);
+                send(exchange, 200, json.toString());
+            } else if (exchange.getRequestMethod().equals("POST")) {
+                List<Query> queries = readQueries(exchange);
+                List<List<Neighbor>> results = model.topK(queries);
+
+                StringBuilder json = new StringBuilder("[");
+                for (int i = 0; i < queries.size(); i++) {
+                    if (i > 0) {
+                        json.append(',');
+                    }
+                    appendResult(json, queries.get(i), results.get(i));
+                }
+                send(exchange, 200, json.append(']').toString());
+            } else {
+                sendError(exchange, 405, "Method not allowed: " + exchange.getRequestMethod());
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IllegalArgumentException) {
+                sendError(exchange, 400, e.getCause().getMessage());
+            } else {
+                sendError(exchange, 500, String.valueOf(e.getCause()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendError(exchange, 503, "Interrupted");
+        } catch (RuntimeException e) {
+            sendError(exchange, 500, e.toString());
+        }
+    }
+
+
+    /**
+
+     Answers GET /stats with the size of the model and the counters of its result cache.
+     */
+    protected void handleStats(HttpExchange exchange) throws IOException {
+        ModelSnapshot snapshot = model.snapshot;
+        ResultCache cache = model.resultCache();
+        send(exchange, 200, "{\"words\":" + snapshot.vocabulary.size() + ",\"tokens\":" + snapshot.wordCount
+                + ",\"sentences\":" + snapshot.numSentences + ",\"cache\":{\"entries\":" + cache.size()
+                + ",\"hits\":" + cache.hits() + ",\"misses\":" + cache.misses() + "}}");
+    }
+
+
+    /**
+
+     Answers GET /metrics with Metrics.global() as JSON lines.
+     */
+    protected void handleMetrics(HttpExchange exchange) throws IOException {
+        StringWriter lines = new StringWriter();
+        Metrics.global().writeJsonLines(lines);
+        send(exchange, 200, lines.toString());
+    }
+
+
+    /**
+
+     Reads the queries of a POST body, one "<word> <weighting> <measure> [k]" line each. Blank lines are skipped.
+     @throws IllegalArgumentException if a line is malformed
+     */
+    protected List<Query> readQueries(HttpExchange exchange) throws IOException {
+        List<Query> queries = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields[0].isEmpty()) {
+                    continue;
+                }
+                if (fields.length < 3 || fields.length > 4) {
+                    throw new IllegalArgumentException("Expected <word> <weighting> <measure> [k]: " + line);
+                }
+                queries.add(query(fields[0], fields[1], fields[2], fields.length == 4 ? fields[3] : null));
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * @throws IllegalArgumentException if k is not a number between 0 and MAX_K or the measure is unknown
+     */
+    protected static Query query(String word, String weighting, String measure, String k) {
+        int topK = Similarity.DEFAULT_K;
+        if (k != null) {
+            topK = parseInt("k", k);
+            if (topK > MAX_K) {
+                throw new IllegalArgumentException("k must be at most " + MAX_K);
+            }
+        }
+        return new Query(word.toLowerCase(), weighting, measure, topK);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the value is not a number
+     */
+    protected static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " is not a number: " + value);
+        }
+    }
+
+    protected static HashMap<String, String> parseQuery(String rawQuery) {
+        HashMap<String, String> params = new HashMap<>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(param.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+
+    /**
+
+     Appends one query's result as a JSON object.
+     */
+    protected static void appendResult(StringBuilder json, Query query, List<Neighbor> neighbors) {
+        json.append("{\"word\":");
+        appendString(json, query.word());
+        json.append(",\"weighting\":\"").append(query.weighting()).append("\",\"measure\":\"")
+                .append(query.measure()).append("\",\"neighbors\":[");
+        for (int i = 0; i < neighbors.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"word\":");
+            appendString(json, neighbors.get(i).word());
+            json.append(",\"score\":");
+            double score = neighbors.get(i).score();
+            // JSON has no NaN or infinities
+            if (Double.isFinite(score)) {
+                json.append(score);
+            } else {
+                json.append("null");
+            }
+            json.append('}');
+        }
+        json.append("]}");
+    }
+
+    protected static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    protected static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        appendString(json, String.valueOf(message));
+        send(exchange, status, json.append('}').toString());
+    }
+
+    protected static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean offHeap = args.length > 1 && args[1].equals("--off-heap");
+        int first = offHeap ? 2 : 1; // index of the first argument naming the model
+        if (args.length < first + 2) {
+            System.err.println("Usage: SimilarityServer <port> (--load <model> | [--off-heap] <stoplist> <sentences>) [index file ...]");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        ForkJoinPool pool = new ForkJoinPool();
+        Metrics.global().registerMBean();
+        Similarity model = !offHeap && args[1].equals("--load")
+                ? Similarity.fromModelFile(args[2], Similarity.DEFAULT_VECTOR_CACHE_BYTES, pool)
+                : Similarity.fromCorpus(args[first], args[first + 1], Similarity.DEFAULT_VECTOR_CACHE_BYTES, pool, offHeap);
+        for (int i = first + 2; i < args.length; i++) {
+            model.loadIndex(args[i]);
+        }
+        System.err.println(model.buildSummary());
+
+        SimilarityServer server = new SimilarityServer(model, port, Runtime.getRuntime().availableProcessors());
+        server.start();
+        System.out.println("Listening on port " + server.port());
+    }
+}
@@ -0,0 +1,239 @@
+import java.util.Arrays;
+
+/**
+ * A sparse co-occurrence vector over the vocabulary. Only the non-zero entries are stored: the term ids
+ * are kept sorted in ascending order in ids, and values holds the weight for the id at the same index.
+ * All of the distance calculations walk the two id arrays together (merge-style), so their cost scales
+ * with the number of non-zeros instead of the size of the vocabulary.
+ */
+public class SparseVector {
+    protected final int[] ids; // sorted term ids of the non-zero entries
+    protected final double[] values; // weight of the term at the same index in ids
+
+    /**
+     * @param ids the term ids of the non-zero entries, sorted in ascending order and without duplicates
+     * @param values the weights corresponding to each id
+     * @throws IllegalArgumentException if the two arrays are not of equal size
+     */
+    public SparseVector(int[] ids, double[] values) {
+        if (ids.length != values.length) {
+            throw new IllegalArgumentException("Ids and values must be of equal size");
+        }
+        this.ids = ids;
+        this.values = values;
+    }
+
+    /**
+     * @return the number of non-zero entries in the vector
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @param i the index of a non-zero entry
+     * @return the term id of the entry
+     */
+    public int id(int i) {
+        return ids[i];
+    }
+
+    /**
+     * @param i the index of a non-zero entry
+     * @return the weight of the entry
+     */
+    public double value(int i) {
+        return values[i];
+    }
+
+    /**
+     * Returns the weight for a term id, or 0 if the term does not occur in the vector.
+     *
+     * @param id the term id to look up
+     * @return the weight of the term
+     */
+    public double get(int id) {
+        int i = Arrays.binarySearch(ids, id);
+        return i >= 0 ? values[i] : 0.0;
+    }
+
+    /**
+
+     Multiplies each value in place by the weight of its term id.
+     @param weights the weight of each term id, such as the idf vector
+     */
+    public void multiply(double[] weights) {
+        for (int i = 0; i < ids.length; i++) {
+            values[i] *= weights[ids[i]];
+        }
+    }
+
+
+    /**
+
+     Normalizes the vector in-place to have a Euclidean L2-norm of 1. All-zero vectors are left as they are.
+     */
+    public void normalize() {
+        double l2Length = l2Length(this);
+        // Check if the L2-norm is zero to avoid division by zero
+        if (l2Length != 0) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] /= l2Length;
+            }
+        }
+    }
+
+    /**
+     * @return a copy of this vector that does not share its values with it
+     */
+    public SparseVector copy() {
+        return new SparseVector(ids, values.clone());
+    }
+
+
+    /**
+
+     Calculates the L2 (Euclidean) length of a vector.
+     @param vec the vector to calculate the length of
+     @return the L2 length of the vector
+     */
+    public static double l2Length(SparseVector vec) {
+        double sumOfSquares = 0.0;
+        for (double d : vec.values) {
+            sumOfSquares += d * d;
+        }
+        return Math.sqrt(sumOfSquares);
+    }
+
+
+    /**
+
+     Calculates the L1 distance between two vectors. Entries present in only one of the vectors
+     contribute their absolute value, entries present in both contribute the absolute difference.
+     @param vector1 first vector
+     @param vector2 second vector
+     @return the L1 distance between the two vectors
+     */
+    public static double l1Distance(SparseVector vector1, SparseVector vector2) {
+        int[] ids1 = vector1.ids, ids2 = vector2.ids;
+        double[] values1 = vector1.values, values2 = vector2.values;
+        int i = 0, j = 0;
+        double sum = 0;
+
+        // Walk both id lists in order, pairing up the ids they share
+        while (i < ids1.length && j < ids2.length) {
+            if (ids1[i] == ids2[j]) {
+                sum += Math.abs(values1[i++] - values2[j++]);
+            } else if (ids1[i] < ids2[j]) {
+                sum += Math.abs(values1[i++]);
+            } else {
+                sum += Math.abs(values2[j++]);
+            }
+        }
+
+        // Whatever is left over only occurs in one of the vectors
+        while (i < ids1.length) {
+            sum += Math.abs(values1[i++]);
+        }
+        while (j < ids2.length) {
+            sum += Math.abs(values2[j++]);
+        }
+        return sum;
+    }
+
+
+    /**
+     * Calculates the Euclidean distance between two vectors.
+     *
+     * @param vector1 the first vector
+     * @param vector2 the second vector
+     * @return the Euclidean distance between the two vectors
+     */
+    public static double euclideanDistance(SparseVector vector1, SparseVector vector2) {
+        int[] ids1 = vector1.ids, ids2 = vector2.ids;
+        double[] values1 = vector1.values, values2 = vector2.values;
+        int i = 0, j = 0;
+        double sum = 0;
+
+        // Calculate the sum of squared differences over the union of the non-zero entries
+        while (i < ids1.length && j < ids2.length) {
+            double diff;
+            if (ids1[i] == ids2[j]) {
+                diff = values1[i++] - values2[j++];
+            } else if (ids1[i] < ids2[j]) {
+                diff = values1[i++];
+            } else {
+                diff = values2[j++];
+            }
+            sum += diff * diff;
+        }
+        while (i < ids1.length) {
+            sum += values1[i] * values1[i];
+            i++;
+        }
+        while (j < ids2.length) {
+            sum += values2[j] * values2[j];
+            j++;
+        }
+
+        // Take the square root of the sum of squared differences to get the Euclidean distance
+        return Math.sqrt(sum);
+    }
+
+
+    /**
+
+     Calculates the dot product of two vectors. Only the ids the vectors share contribute.
+     @param vector1 the first vector
+     @param vector2 the second vector
+     @return the dot product of the two vectors
+     */
+    public static double dot(SparseVector vector1, SparseVector vector2) {
+        int[] ids1 = vector1.ids, ids2 = vector2.ids;
+        double[] values1 = vector1.values, values2 = vector2.values;
+        int i = 0, j = 0;
+        double dotProduct = 0.0;
+
+        while (i < ids1.length && j < ids2.length) {
+            if (ids1[i] == ids2[j]) {
+                dotProduct += values1[i++] * values2[j++];
+            } else if (ids1[i] < ids2[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return dotProduct;
+    }
+
+
+    /**
+
+     Calculates the cosine similarity between two vectors.
+     @param vector1 the first vector
+     @param vector2 the second vector
+     @return the cosine of the angle between the two vectors, or 0 if either of them is all zeros
+     */
+    public static double cosine(SparseVector vector1, SparseVector vector2) {
+        return cosine(vector1, l2Length(vector1), vector2, l2Length(vector2));
+    }
+
+
+    /**
+
+     Calculates the cosine similarity between two vectors whose L2 lengths are already known, such as
+     normalized vectors that are each compared many times. The result is exactly that of cosine(vector1, vector2).
+     @param vector1 the first vector
+     @param norm1 the L2 length of the first vector, from l2Length
+     @param vector2 the second vector
+     @param norm2 the L2 length of the second vector, from l2Length
+     @return the cosine of the angle between the two vectors, or 0 if either of them is all zeros
+     */
+    public static double cosine(SparseVector vector1, double norm1, SparseVector vector2, double norm2) {
+        // Check for divide-by-zero error and return the cosine
+        if (norm1 == 0.0 || norm2 == 0.0) {
+            return 0;
+        }
+        return dot(vector1, vector2) / (norm1 * norm2);
+    }
+}
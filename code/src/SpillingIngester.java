@@ -0,0 +1,360 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds a model file straight from a sentences file too large for its co-occurrence counts to fit on the
+ * heap. The file is read from start to end, and whenever the counted (word, context) pairs reach the
+ * spill threshold they are sorted and written out to a temporary run file, and counting starts over with
+ * an empty table. At the end the runs are merged, MAX_FAN_IN at a time, adding up the counts of pairs
+ * that occur in several runs; since the runs are sorted by (word id, context id), the final merge comes
+ * out in CSR order and is written directly into the entry sections of the model file.
+ *
+ * The heap this takes is bounded by the spill threshold plus the vocabulary and the arrays indexed by word
+ * id, whatever the size of the corpus. Word ids are handed out in first-seen order over the whole file, so
+ * the model file is the same as saving a model built in memory from the same sentences.
+ */
+public class SpillingIngester extends CorpusIngester {
+    // default memory budget of the pairs counted between spills
+    public static final long DEFAULT_SPILL_BYTES = Math.min(1L << 28, Runtime.getRuntime().maxMemory() / 8);
+    // estimate of the heap one counted pair takes up: its hash table slots at the table's load factor, and
+    // its key and count while the run is sorted
+    protected static final int BYTES_PER_PAIR = 32;
+    // most runs merged at once, so the merge's read buffers take up a bounded amount of heap
+    protected static final int MAX_FAN_IN = 64;
+    protected static final int RECORD_BYTES = Long.BYTES + Integer.BYTES; // bytes of one pair in a run file
+
+    protected final int maxPairs; // number of counted pairs at which they are spilled
+    protected final Path tempDir; // directory the run files are written to
+    protected final List<Path> runs = new ArrayList<>(); // run files written so far, in order
+    protected long[] sortKeys = new long[0]; // scratch space for sorting a run
+
+    /**
+     * @param stopList the stop words to skip, in lower case
+     * @param charset the charset of the sentences file; must encode '\n' and '\r' as the single bytes 10 and 13
+     * @param spillBytes the heap the counted pairs may take up before they are spilled to a run file
+     * @param tempDir the directory to write run files to
+     * @throws IllegalArgumentException if spillBytes is too small to hold a single pair
+     */
+    public SpillingIngester(Set<String> stopList, Charset charset, long spillBytes, Path tempDir) {
+        this(stopList, charset, ContextWindow.DEFAULT, spillBytes, tempDir);
+    }
+
+    /**
+     * @param stopList the stop words to skip, in lower case
+     * @param charset the charset of the sentences file; must encode '\n' and '\r' as the single bytes 10 and 13
+     * @param window which words count as a word's context, and how much each one counts
+     * @param spillBytes the heap the counted pairs may take up before they are spilled to a run file
+     * @param tempDir the directory to write run files to
+     * @throws IllegalArgumentException if spillBytes is too small to hold a single pair
+     */
+    public SpillingIngester(Set<String> stopList, Charset charset, ContextWindow window, long spillBytes,
+                            Path tempDir) {
+        super(stopList, charset, window);
+        if (spillBytes < BYTES_PER_PAIR) {
+            throw new IllegalArgumentException("Spill threshold of " + spillBytes + " bytes is too small");
+        }
+        this.maxPairs = (int) Math.min(spillBytes / BYTES_PER_PAIR, Integer.MAX_VALUE / 2);
+        this.tempDir = tempDir;
+    }
+
+
+    /**
+
+     Counts a sentences file and writes the counts as a model file that ModelFile.load can map.
+     @param sentences the path of the sentences file, one sentence per line
+     @param modelFile the path of the model file to write, which is replaced if it exists
+     @throws IOException if the sentences cannot be read or a run or the model file cannot be written
+     */
+    public void build(String sentences, String modelFile) throws IOException {
+        try {
+            CooccurrenceCounts counts = new CooccurrenceCounts(window);
+            long started = INGEST.start();
+            try {
+                countAll(sentences, counts);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                INGEST.stop(started);
+            }
+            if (counts.pairs.size() > 0 || runs.isEmpty()) {
+                spill(counts.pairs);
+            }
+
+            // Merge down to at most MAX_FAN_IN runs, then merge those into the model file
+            while (runs.size() > MAX_FAN_IN) {
+                List<Path> merged = new ArrayList<>();
+                try {
+                    for (int from = 0; from < runs.size(); from += MAX_FAN_IN) {
+                        List<Path> group = runs.subList(from, Math.min(from + MAX_FAN_IN, runs.size()));
+                        Path run = Files.createTempFile(tempDir, "cooccurrences", ".run");
+                        merged.add(run);
+                        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                Files.newOutputStream(run), BUFFER_SIZE))) {
+                            merge(group, (key, count) -> {
+                                out.writeLong(key);
+                                out.writeInt(count);
+                            });
+                        }
+                        for (Path done : group) {
+                            Files.delete(done);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    for (Path run : merged) {
+                        Files.deleteIfExists(run);
+                    }
+                    throw e;
+                }
+                runs.clear();
+                runs.addAll(merged);
+            }
+            writeModel(counts, modelFile);
+        } finally {
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+            runs.clear();
+        }
+    }
+
+
+    /**
+
+     Adds a line to the counts, as for CorpusIngester, and spills the counted pairs once there are too many.
+     */
+    @Override
+    protected CharBuffer processLine(ByteBuffer line, CharsetDecoder decoder, CharBuffer chars,
+                                     CooccurrenceCounts counts, Tokenizer tokenizer) {
+        chars = super.processLine(line, decoder, chars, counts, tokenizer);
+        if (counts.pairs.size() >= maxPairs) {
+            try {
+                spill(counts.pairs);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return chars;
+    }
+
+
+    /**
+
+     Writes the counted pairs to a new run file sorted by key, as (long key, int count) records, and
+     empties the table.
+     @param pairs the counted pairs
+     @throws IOException if the run file cannot be written
+     */
+    protected void spill(LongIntHashMap pairs) throws IOException {
+        int n = pairs.size();
+        if (sortKeys.length < n) {
+            sortKeys = new long[n];
+        }
+        int i = 0;
+        for (int s = pairs.nextSlot(0); s >= 0; s = pairs.nextSlot(s + 1)) {
+            sortKeys[i++] = pairs.keyAt(s);
+        }
+        Arrays.sort(sortKeys, 0, n);
+
+        Path run = Files.createTempFile(tempDir, "cooccurrences", ".run");
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE))) {
+            for (i = 0; i < n; i++) {
+                out.writeLong(sortKeys[i]);
+                out.writeInt(pairs.get(sortKeys[i]));
+            }
+        }
+        pairs.clear();
+    }
+
+
+    /**
+
+     Merges sorted runs into one sorted sequence of pairs, adding up the counts of a pair that occurs in
+     more than one run.
+     @param group the run files to merge
+     @param sink where each merged pair goes, in ascending key order
+     @throws IOException if a run cannot be read or the sink fails
+     */
+    protected void merge(List<Path> group, EntrySink sink) throws IOException {
+        DataInputStream[] readers = new DataInputStream[group.size()];
+        long[] heads = new long[group.size()]; // the next key of each run
+        int[] headCounts = new int[group.size()];
+        long[] remaining = new long[group.size()]; // the number of records of each run not read yet
+        int[] heap = new int[group.size()]; // runs that are not used up, by their next key
+        int size = 0;
+        try {
+            for (int r = 0; r < readers.length; r++) {
+                readers[r] = new DataInputStream(new BufferedInputStream(Files.newInputStream(group.get(r)), BUFFER_SIZE));
+                remaining[r] = Files.size(group.get(r)) / RECORD_BYTES;
+                if (advance(readers[r], remaining, heads, headCounts, r)) {
+                    heap[size++] = r;
+                    siftUp(heap, size - 1, heads);
+                }
+            }
+
+            while (size > 0) {
+                long key = heads[heap[0]];
+                long count = 0;
+                while (size > 0 && heads[heap[0]] == key) {
+                    int r = heap[0];
+                    count += headCounts[r];
+                    if (advance(readers[r], remaining, heads, headCounts, r)) {
+                        siftDown(heap, 0, size, heads);
+                    } else {
+                        heap[0] = heap[--size];
+                        siftDown(heap, 0, size, heads);
+                    }
+                }
+                if (count > Integer.MAX_VALUE) {
+                    throw new IOException("Co-occurrence count of more than " + Integer.MAX_VALUE);
+                }
+                sink.add(key, (int) count);
+            }
+        } finally {
+            for (DataInputStream reader : readers) {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the next record of run r into heads and headCounts.
+     *
+     * @return false if the run is used up
+     */
+    protected static boolean advance(DataInputStream reader, long[] remaining, long[] heads, int[] headCounts, int r)
+            throws IOException {
+        if (remaining[r] == 0) {
+            return false;
+        }
+        remaining[r]--;
+        heads[r] = reader.readLong();
+        headCounts[r] = reader.readInt();
+        return true;
+    }
+
+    protected static void siftUp(int[] heap, int i, long[] heads) {
+        int r = heap[i];
+        while (i > 0 && heads[heap[(i - 1) / 2]] > heads[r]) {
+            heap[i] = heap[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        heap[i] = r;
+    }
+
+    protected static void siftDown(int[] heap, int i, int size, long[] heads) {
+        if (size == 0) {
+            return;
+        }
+        int r = heap[i];
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && heads[heap[child + 1]] < heads[heap[child]]) {
+                child++;
+            }
+            if (heads[heap[child]] >= heads[r]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = r;
+    }
+
+
+    /**
+
+     Writes the model file in ModelFile's format. The context ids of the merged pairs go straight into
+     the file and their counts into a temporary file that is appended once the merge is done, since the
+     counts section starts at an offset that depends on the number of entries. The row offsets and the
+     number of entries are filled in last.
+     @param counts the counts of the whole file, whose pairs have all been spilled
+     @param modelFile the path of the model file
+     @throws IOException if a run cannot be read or the model file cannot be written
+     */
+    protected void writeModel(CooccurrenceCounts counts, String modelFile) throws IOException {
+        Vocabulary vocabulary = counts.vocabulary;
+        long[] rowOffsets = new long[vocabulary.size() + 1];
+        Path countsFile = Files.createTempFile(tempDir, "counts", ".tmp");
+        try (FileChannel channel = FileChannel.open(Paths.get(modelFile), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+            ModelFile.writeHeader(out, stopList, window, vocabulary, counts.sentenceFrequencies, 0,
+                    counts.numSentences, counts.wordCount);
+            long rowOffsetsPosition = out.size();
+            for (int i = 0; i < rowOffsets.length; i++) {
+                out.writeLong(0);
+            }
+            while (out.size() % Integer.BYTES != 0) {
+                out.writeByte(0);
+            }
+            out.flush();
+            long dataOffset = channel.position();
+
+            // Context ids to the model file, counts to the side, and the length of every row
+            try (DataOutputStream countsOut = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(countsFile), BUFFER_SIZE))) {
+                merge(runs, (key, count) -> {
+                    out.writeInt(LongIntHashMap.contextOf(key));
+                    countsOut.writeInt(count);
+                    rowOffsets[LongIntHashMap.wordOf(key) + 1]++;
+                });
+            }
+            out.flush();
+            try (FileChannel countsChannel = FileChannel.open(countsFile, StandardOpenOption.READ)) {
+                long size = countsChannel.size();
+                for (long pos = 0; pos < size; ) {
+                    pos += countsChannel.transferTo(pos, size - pos, channel);
+                }
+            }
+
+            for (int w = 0; w + 1 < rowOffsets.length; w++) {
+                rowOffsets[w + 1] += rowOffsets[w];
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = rowOffsetsPosition;
+            for (int i = 0; i < rowOffsets.length; ) {
+                buffer.clear();
+                while (i < rowOffsets.length && buffer.remaining() >= Long.BYTES) {
+                    buffer.putLong(rowOffsets[i++]);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+            channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, dataOffset), ModelFile.DATA_OFFSET_POSITION);
+            channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, rowOffsets[rowOffsets.length - 1]),
+                    ModelFile.NNZ_POSITION);
+        } finally {
+            Files.deleteIfExists(countsFile);
+        }
+    }
+
+    /**
+     * Receives merged pairs in ascending key order.
+     */
+    protected interface EntrySink {
+        void add(long key, int count) throws IOException;
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Splits sentences into word ids without creating a String for every token. A sentence is split on the
+ * same whitespace characters as the regex "\\s+", lower cased, stop words are dropped and only the words
+ * made up exclusively of the letters a-z are kept, exactly as toLowerCase, split("\\s+") and the
+ * "[a-zA-Z]+" check would.
+ *
+ * Tokens that are plain ASCII are lower cased in place and looked up in the stop words and the vocabulary
+ * straight from the char buffer. Tokens with any other character go the slow way through String, since
+ * lower casing can turn some of them into ASCII letters (the Kelvin sign becomes 'k', for example).
+ *
+ * A tokenizer keeps its buffers between sentences, so it is not thread-safe; use one per thread.
+ */
+public class Tokenizer {
+    protected final Set<String> stopList; // stop words, for the tokens that are not plain ASCII
+    protected final Vocabulary stopWords; // the same stop words, for looking up char runs
+    // false if the default locale does not lower case 'A'-'Z' to 'a'-'z' (like Turkish 'I'), so every token goes through String
+    protected final boolean asciiLowerCase;
+
+    protected char[] chars = new char[256]; // scratch buffer for sentences given as Strings
+    protected int[] words = new int[64]; // word ids of the last sentence
+
+    /**
+     * @param stopList the stop words to skip, in lower case
+     */
+    public Tokenizer(Set<String> stopList) {
+        this.stopList = stopList;
+        this.stopWords = new Vocabulary();
+        for (String stopWord : stopList) {
+            stopWords.add(stopWord);
+        }
+        String letters = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+        this.asciiLowerCase = letters.toLowerCase().equals(letters.toLowerCase(Locale.ROOT));
+    }
+
+
+    /**
+
+     Splits a sentence into word ids, adding new words to the vocabulary.
+     @param sentence the sentence
+     @param vocabulary the vocabulary to intern the words in
+     @return the number of word ids, which can be read from words()
+     */
+    public int tokenize(String sentence, Vocabulary vocabulary) {
+        int length = sentence.length();
+        if (length > chars.length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        sentence.getChars(0, length, chars, 0);
+        return tokenize(chars, 0, length, vocabulary);
+    }
+
+
+    /**
+
+     Splits a sentence held in a char buffer into word ids, adding new words to the vocabulary. The
+     buffer is lower cased in place.
+     @param buffer the buffer holding the sentence
+     @param offset the index of the sentence's first char
+     @param length the number of chars in the sentence
+     @param vocabulary the vocabulary to intern the words in
+     @return the number of word ids, which can be read from words()
+     */
+    public int tokenize(char[] buffer, int offset, int length, Vocabulary vocabulary) {
+        int count = 0;
+        int end = offset + length;
+        int i = offset;
+
+        while (i < end) {
+            // Skip the whitespace before the token
+            while (i < end && isWhitespace(buffer[i])) {
+                i++;
+            }
+            if (i == end) {
+                break;
+            }
+
+            // Find the end of the token, lower casing it and checking what kind of characters it has
+            int start = i;
+            boolean letters = true;
+            boolean ascii = asciiLowerCase;
+            for (; i < end && !isWhitespace(buffer[i]); i++) {
+                char c = buffer[i];
+                if (c >= 'A' && c <= 'Z') {
+                    if (asciiLowerCase) {
+                        buffer[i] = (char) (c + ('a' - 'A'));
+                    }
+                } else if (c >= 0x80) {
+                    ascii = false;
+                } else if (c < 'a' || c > 'z') {
+                    letters = false;
+                }
+            }
+
+            int id;
+            if (ascii) {
+                // Tokens with digits or punctuation are dropped whether or not they are stop words
+                if (!letters || stopWords.id(buffer, start, i - start) >= 0) {
+                    continue;
+                }
+                id = vocabulary.add(buffer, start, i - start);
+            } else {
+                String word = new String(buffer, start, i - start).toLowerCase();
+                if (stopList.contains(word) || !CorpusIngester.isAlpha(word)) {
+                    continue;
+                }
+                id = vocabulary.add(word);
+            }
+
+            if (count == words.length) {
+                words = Arrays.copyOf(words, words.length * 2);
+            }
+            words[count++] = id;
+        }
+        return count;
+    }
+
+    /**
+     * @return the word ids of the last sentence; only the first as many as tokenize returned are valid
+     */
+    public int[] words() {
+        return words;
+    }
+
+    /**
+     * @return true for the characters the regex "\\s" matches
+     */
+    protected static boolean isWhitespace(char c) {
+        return c == ' ' || (c >= '\t' && c <= '\r');
+    }
+}
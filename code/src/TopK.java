@@ -0,0 +1,161 @@
+/**
+ * Keeps the k best (score, wordId) pairs out of a stream of scored words without sorting all of them.
+ * The pairs are held in a fixed-size binary heap of primitive arrays whose root is the worst pair kept,
+ * so each offer costs O(log k) and nothing is allocated per candidate. Depending on the measure, higher
+ * scores (similarities) or lower scores (distances) are better; ties are broken by the lower word id.
+ */
+public class TopK {
+    protected final double[] scores; // heap of the scores kept, worst at index 0
+    protected final int[] ids; // word id of the score at the same index
+    protected final boolean higherIsBetter; // true for similarities, false for distances
+    protected int size; // number of pairs currently kept
+
+    /**
+     * @param k the number of pairs to keep
+     * @param higherIsBetter true if higher scores rank first (similarities), false if lower scores do (distances)
+     */
+    public TopK(int k, boolean higherIsBetter) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must not be negative");
+        }
+        this.scores = new double[k];
+        this.ids = new int[k];
+        this.higherIsBetter = higherIsBetter;
+    }
+
+    /**
+     * @param k the number of pairs to keep
+     * @param measure the measure the scores were calculated with
+     */
+    public TopK(int k, Measure measure) {
+        this(k, measure.higherIsBetter());
+    }
+
+
+    /**
+
+     Offers a scored word, keeping it if it is among the k best seen so far.
+     @param score the score of the word
+     @param id the id of the word
+     */
+    public void offer(double score, int id) {
+        if (size < scores.length) {
+            // Still filling up: add at the bottom and sift up towards the root
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!better(scores[parent], ids[parent], score, id)) {
+                    break;
+                }
+                scores[i] = scores[parent];
+                ids[i] = ids[parent];
+                i = parent;
+            }
+            scores[i] = score;
+            ids[i] = id;
+        } else if (size > 0 && better(score, id, scores[0], ids[0])) {
+            // Better than the worst pair kept: replace the root and sift down
+            siftDown(score, id);
+        }
+    }
+
+
+    /**
+
+     Places a pair at the root of the heap and moves it down until both of its children are better.
+     @param score the score of the pair
+     @param id the id of the pair
+     */
+    protected void siftDown(double score, int id) {
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            // Pick the worse of the two children
+            if (right < size && better(scores[child], ids[child], scores[right], ids[right])) {
+                child = right;
+            }
+            if (!better(score, id, scores[child], ids[child])) {
+                break;
+            }
+            scores[i] = scores[child];
+            ids[i] = ids[child];
+            i = child;
+        }
+        scores[i] = score;
+        ids[i] = id;
+    }
+
+
+    /**
+
+     Determines if the first pair ranks ahead of the second.
+     @return true if (score1, id1) is better than (score2, id2)
+     */
+    protected boolean better(double score1, int id1, double score2, int id2) {
+        int cmp = Double.compare(score1, score2);
+        if (cmp == 0) {
+            return id1 < id2;
+        }
+        return higherIsBetter ? cmp > 0 : cmp < 0;
+    }
+
+
+    /**
+
+     Offers every pair kept by another selector, as when merging the results of scoring separate ranges.
+     The other selector is left unchanged.
+     @param other the selector to merge into this one
+     */
+    public void addAll(TopK other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.scores[i], other.ids[i]);
+        }
+    }
+
+
+    /**
+
+     Empties the selector so it can be reused for another query.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return the number of pairs currently kept, at most k
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of pairs this selector keeps
+     */
+    public int capacity() {
+        return scores.length;
+    }
+
+
+    /**
+
+     Sorts the pairs kept, best first, into the given arrays. The selector is left empty.
+     @param outScores receives the scores, best first; must hold at least size() entries
+     @param outIds receives the word ids matching outScores
+     @return the number of pairs written
+     */
+    public int drainSorted(double[] outScores, int[] outIds) {
+        int n = size;
+        // Repeatedly move the worst pair out of the heap into the back of the output
+        for (int i = n - 1; i >= 0; i--) {
+            outScores[i] = scores[0];
+            outIds[i] = ids[0];
+            size--;
+            if (size > 0) {
+                siftDown(scores[size], ids[size]);
+            }
+        }
+        return n;
+    }
+}
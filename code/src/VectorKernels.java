@@ -0,0 +1,190 @@
+/**
+ * Distance kernels over runs of dense float and double arrays, such as the rows of an EmbeddingTable.
+ * This class is the scalar implementation: each loop keeps four independent sums so the additions do
+ * not all wait on each other, and the JIT can unroll it. VectorKernelsSimd overrides every kernel with
+ * jdk.incubator.vector code, and DEFAULT is an instance of it when the JVM was started with
+ * --add-modules jdk.incubator.vector, or of this class when it was not.
+ *
+ * VectorKernelsSimd is in its own source root, code/simd/src, so that the rest of the model compiles with
+ * plain javac. The Maven build compiles it on JDK 16 and later through the simd profile. By hand, from code:
+ *
+ *     javac -encoding UTF-8 -d out src/*.java
+ *     javac -encoding UTF-8 --add-modules jdk.incubator.vector -cp out -d out simd/src/*.java
+ *     java --add-modules jdk.incubator.vector -cp out Similarity ...
+ *
+ * Leaving out the second step, or the option when running, gives the scalar kernels.
+ *
+ * The fused kernels are for inputs that are already unit length, as normalized vectors are: the cosine
+ * of two unit vectors is their dot product, so their norms are never computed again.
+ */
+public class VectorKernels {
+    // the kernels every caller should use, vectorized if the JVM allows it
+    public static final VectorKernels DEFAULT = load();
+
+
+    /**
+
+     Picks the SIMD kernels if the Vector API module is present and its class loads, and the scalar ones
+     otherwise.
+     @return the kernels to use
+     */
+    protected static VectorKernels load() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (VectorKernels) Class.forName("VectorKernelsSimd").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // Built without the SIMD class; the scalar kernels give the same results to rounding
+            }
+        }
+        return new VectorKernels();
+    }
+
+    /**
+     * @return a short name for the kernels, for reports
+     */
+    public String name() {
+        return "scalar";
+    }
+
+    public float dot(float[] a, int offsetA, float[] b, int offsetB, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int k = 0;
+        for (; k + 3 < length; k += 4) {
+            s0 += a[offsetA + k] * b[offsetB + k];
+            s1 += a[offsetA + k + 1] * b[offsetB + k + 1];
+            s2 += a[offsetA + k + 2] * b[offsetB + k + 2];
+            s3 += a[offsetA + k + 3] * b[offsetB + k + 3];
+        }
+        for (; k < length; k++) {
+            s0 += a[offsetA + k] * b[offsetB + k];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    public float l1Distance(float[] a, int offsetA, float[] b, int offsetB, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int k = 0;
+        for (; k + 3 < length; k += 4) {
+            s0 += Math.abs(a[offsetA + k] - b[offsetB + k]);
+            s1 += Math.abs(a[offsetA + k + 1] - b[offsetB + k + 1]);
+            s2 += Math.abs(a[offsetA + k + 2] - b[offsetB + k + 2]);
+            s3 += Math.abs(a[offsetA + k + 3] - b[offsetB + k + 3]);
+        }
+        for (; k < length; k++) {
+            s0 += Math.abs(a[offsetA + k] - b[offsetB + k]);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * @return the sum of the squared differences, the square of the Euclidean distance
+     */
+    public float squaredDistance(float[] a, int offsetA, float[] b, int offsetB, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int k = 0;
+        for (; k + 3 < length; k += 4) {
+            float d0 = a[offsetA + k] - b[offsetB + k];
+            float d1 = a[offsetA + k + 1] - b[offsetB + k + 1];
+            float d2 = a[offsetA + k + 2] - b[offsetB + k + 2];
+            float d3 = a[offsetA + k + 3] - b[offsetB + k + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; k < length; k++) {
+            float d = a[offsetA + k] - b[offsetB + k];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    public double dot(double[] a, int offsetA, double[] b, int offsetB, int length) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int k = 0;
+        for (; k + 3 < length; k += 4) {
+            s0 += a[offsetA + k] * b[offsetB + k];
+            s1 += a[offsetA + k + 1] * b[offsetB + k + 1];
+            s2 += a[offsetA + k + 2] * b[offsetB + k + 2];
+            s3 += a[offsetA + k + 3] * b[offsetB + k + 3];
+        }
+        for (; k < length; k++) {
+            s0 += a[offsetA + k] * b[offsetB + k];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    public double l1Distance(double[] a, int offsetA, double[] b, int offsetB, int length) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int k = 0;
+        for (; k + 3 < length; k += 4) {
+            s0 += Math.abs(a[offsetA + k] - b[offsetB + k]);
+            s1 += Math.abs(a[offsetA + k + 1] - b[offsetB + k + 1]);
+            s2 += Math.abs(a[offsetA + k + 2] - b[offsetB + k + 2]);
+            s3 += Math.abs(a[offsetA + k + 3] - b[offsetB + k + 3]);
+        }
+        for (; k < length; k++) {
+            s0 += Math.abs(a[offsetA + k] - b[offsetB + k]);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * @return the sum of the squared differences, the square of the Euclidean distance
+     */
+    public double squaredDistance(double[] a, int offsetA, double[] b, int offsetB, int length) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int k = 0;
+        for (; k + 3 < length; k += 4) {
+            double d0 = a[offsetA + k] - b[offsetB + k];
+            double d1 = a[offsetA + k + 1] - b[offsetB + k + 1];
+            double d2 = a[offsetA + k + 2] - b[offsetB + k + 2];
+            double d3 = a[offsetA + k + 3] - b[offsetB + k + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; k < length; k++) {
+            double d = a[offsetA + k] - b[offsetB + k];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+
+    /**
+
+     Compares two unit-length (or all zero) float vectors, without computing their norms.
+     @param measure the measure to compare them with
+     @return the distance or similarity between the two vectors
+     */
+    public float scoreNormalized(Measure measure, float[] a, int offsetA, float[] b, int offsetB, int length) {
+        switch (measure) {
+            case L1:
+                return l1Distance(a, offsetA, b, offsetB, length);
+            case EUCLIDEAN:
+                return (float) Math.sqrt(squaredDistance(a, offsetA, b, offsetB, length));
+            default:
+                return dot(a, offsetA, b, offsetB, length);
+        }
+    }
+
+
+    /**
+
+     Compares two unit-length (or all zero) double vectors, without computing their norms.
+     @param measure the measure to compare them with
+     @return the distance or similarity between the two vectors
+     */
+    public double scoreNormalized(Measure measure, double[] a, int offsetA, double[] b, int offsetB, int length) {
+        switch (measure) {
+            case L1:
+                return l1Distance(a, offsetA, b, offsetB, length);
+            case EUCLIDEAN:
+                return Math.sqrt(squaredDistance(a, offsetA, b, offsetB, length));
+            default:
+                return dot(a, offsetA, b, offsetB, length);
+        }
+    }
+}
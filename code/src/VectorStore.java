@@ -0,0 +1,234 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the weighted, L2-normalized co-occurrence vector of each word so that it is only built once per
+ * run instead of once per target word. Vectors are keyed by word id and weighting scheme, and the
+ * store holds at most memoryBudget bytes of them (estimated); once the budget is exceeded the least
+ * recently used vectors are evicted and rebuilt on their next use.
+ *
+ * The store is safe to use from several threads at once. It is split into segments by key, each with
+ * its own lock, least recently used order and an equal share of the budget, so that threads scoring
+ * different words rarely wait on each other.
+ */
+public class VectorStore {
+    // rough per-vector cost of the SparseVector, its two arrays and the map entry holding it
+    protected static final long VECTOR_OVERHEAD_BYTES = 96;
+    // cost of each non-zero entry: one int id and one double value
+    protected static final long ENTRY_BYTES = Integer.BYTES + Double.BYTES;
+    protected static final Metrics.Timer BUILD = Metrics.global().timer("vectors.build");
+    // number of independently locked segments, a power of two
+    protected static final int SEGMENTS = 64;
+
+    protected final ModelSnapshot model; // the model the vectors are built from
+    protected final long memoryBudget; // maximum estimated size of the stored vectors, in bytes
+    protected final Segment[] segments; // stored vectors, split up by key
+
+    /**
+     * @param model the model whose co-occurrence counts the vectors are built from
+     * @param memoryBudget the maximum number of bytes the stored vectors may take up
+     */
+    public VectorStore(ModelSnapshot model, long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("Memory budget must not be negative");
+        }
+        this.model = model;
+        this.memoryBudget = memoryBudget;
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(memoryBudget / SEGMENTS);
+        }
+    }
+
+
+    /**
+
+     Returns the normalized vector of a word under the given weighting, building it if it is not stored.
+     The returned vector is shared and must not be modified.
+     @param wordId the id of the word in the model's vocabulary
+     @param weighting the weighting scheme to apply to the word's counts
+     @return the L2-normalized, weighted co-occurrence vector of the word
+     */
+    public SparseVector get(int wordId, Weighting weighting) {
+        long key = key(wordId, weighting);
+        Segment segment = segments[wordId & (SEGMENTS - 1)];
+        SparseVector vec = segment.get(key);
+        if (vec != null) {
+            return vec;
+        }
+
+        // Build outside of the lock so other words in the segment can still be read meanwhile
+        vec = build(wordId, weighting);
+        return segment.put(key, vec);
+    }
+
+
+    /**
+
+     Builds the weighted, normalized vector of a word from the model's co-occurrence counts.
+     @param wordId the id of the word in the model's vocabulary
+     @param weighting the weighting scheme to apply to the word's counts
+     @return the newly built vector
+     */
+    protected SparseVector build(int wordId, Weighting weighting) {
+        long started = BUILD.start();
+        SparseVector vec = model.matrix.row(wordId);
+        weighting.apply(vec, wordId, model);
+        vec.normalize();
+        BUILD.stop(started);
+        return vec;
+    }
+
+
+    /**
+
+     Copies the stored vectors of one weighting over from another store, skipping the words marked as
+     changed. Used when a model is updated, so the vectors of words the update did not change are not
+     rebuilt.
+     @param other the store to copy from
+     @param weighting the weighting of the vectors to copy
+     @param changed for each word id, whether the word's vector may have changed; ids past its end are
+                    treated as changed
+     */
+    public void carryOver(VectorStore other, Weighting weighting, boolean[] changed) {
+        for (Segment segment : other.segments) {
+            synchronized (segment) {
+                for (Map.Entry<Long, SparseVector> entry : segment.vectors.entrySet()) {
+                    long key = entry.getKey();
+                    int wordId = (int) key;
+                    if ((int) (key >>> 32) == weighting.ordinal() && wordId < changed.length && !changed[wordId]) {
+                        segments[wordId & (SEGMENTS - 1)].put(key, entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+
+     Removes all stored vectors.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @return the number of vectors currently stored
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.vectors.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the estimated number of bytes taken up by the stored vectors
+     */
+    public long usedBytes() {
+        long usedBytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                usedBytes += segment.usedBytes;
+            }
+        }
+        return usedBytes;
+    }
+
+    /**
+     * @return the number of lookups that were answered from a stored vector
+     */
+    public long hits() {
+        long hits = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that had to build their vector
+     */
+    public long misses() {
+        long misses = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                misses += segment.misses;
+            }
+        }
+        return misses;
+    }
+
+    protected static long key(int wordId, Weighting weighting) {
+        return ((long) weighting.ordinal() << 32) | (wordId & 0xFFFFFFFFL);
+    }
+
+    protected static long sizeOf(SparseVector vec) {
+        return VECTOR_OVERHEAD_BYTES + ENTRY_BYTES * vec.size();
+    }
+
+
+    /**
+     * One lock's worth of stored vectors, in least recently used order.
+     */
+    protected static class Segment {
+        protected final long memoryBudget; // this segment's share of the budget, in bytes
+        protected final LinkedHashMap<Long, SparseVector> vectors = new LinkedHashMap<>(16, 0.75f, true);
+        protected long usedBytes; // estimated size of the stored vectors, in bytes
+        protected long hits;
+        protected long misses;
+
+        protected Segment(long memoryBudget) {
+            this.memoryBudget = memoryBudget;
+        }
+
+        protected synchronized SparseVector get(long key) {
+            SparseVector vec = vectors.get(key);
+            if (vec != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+            return vec;
+        }
+
+        /**
+
+         Stores a newly built vector, unless another thread stored one for the same key first.
+         @return the vector that is now stored for the key
+         */
+        protected synchronized SparseVector put(long key, SparseVector vec) {
+            SparseVector existing = vectors.get(key);
+            if (existing != null) {
+                return existing;
+            }
+
+            // Only keep the vector if it fits in the budget at all, evicting the oldest vectors to make room
+            long size = sizeOf(vec);
+            if (size <= memoryBudget) {
+                vectors.put(key, vec);
+                usedBytes += size;
+                Iterator<Map.Entry<Long, SparseVector>> it = vectors.entrySet().iterator();
+                while (usedBytes > memoryBudget && it.hasNext()) {
+                    usedBytes -= sizeOf(it.next().getValue());
+                    it.remove();
+                }
+            }
+            return vec;
+        }
+
+        protected synchronized void clear() {
+            vectors.clear();
+            usedBytes = 0;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Interns the unique words of the sentences file as dense integer ids. Ids are handed out in the order
+ * the words are first added, starting at 0, so they can be used directly as array indices for
+ * vectors, idf values and scores.
+ *
+ * Words can be looked up and added either as Strings or as a run of chars in a buffer; the latter does
+ * not create a String unless the word is new, which lets the tokenizer intern words without allocating.
+ * The lookup table is an open-addressing array of ids, hashed the same way as String.hashCode.
+ */
+public class Vocabulary {
+    protected static final float LOAD_FACTOR = 0.5f;
+
+    protected final ArrayList<String> words; // words in id order
+    protected int[] hashes; // hash of each word, in id order
+    protected int[] table; // id + 1 of the word in each slot, or 0 for an empty slot
+    protected int mask; // table.length - 1, the length is always a power of two
+
+    public Vocabulary() {
+        words = new ArrayList<>();
+        hashes = new int[16];
+        table = new int[32];
+        mask = table.length - 1;
+    }
+
+    /**
+     * @param other a vocabulary to copy; the copy hands out the same ids and can grow independently
+     */
+    public Vocabulary(Vocabulary other) {
+        words = new ArrayList<>(other.words);
+        hashes = other.hashes.clone();
+        table = other.table.clone();
+        mask = other.mask;
+    }
+
+
+    /**
+
+     Adds a word to the vocabulary if it is not already in it.
+     @param word the word to add
+     @return the id of the word
+     */
+    public int add(String word) {
+        int hash = word.hashCode();
+        int slot = find(word, hash);
+        if (table[slot] != 0) {
+            return table[slot] - 1;
+        }
+        return insert(slot, word, hash);
+    }
+
+
+    /**
+
+     Adds the word in a run of chars to the vocabulary if it is not already in it. A String is only
+     created for the word if it is new.
+     @param chars the buffer holding the word
+     @param offset the index of the word's first char
+     @param length the number of chars in the word
+     @return the id of the word
+     */
+    public int add(char[] chars, int offset, int length) {
+        int hash = hash(chars, offset, length);
+        int slot = find(chars, offset, length, hash);
+        if (table[slot] != 0) {
+            return table[slot] - 1;
+        }
+        return insert(slot, new String(chars, offset, length), hash);
+    }
+
+
+    /**
+
+     Looks up the id of a word.
+     @param word the word to look up
+     @return the id of the word, or -1 if it is not in the vocabulary
+     */
+    public int id(String word) {
+        return table[find(word, word.hashCode())] - 1;
+    }
+
+
+    /**
+
+     Looks up the id of the word in a run of chars.
+     @param chars the buffer holding the word
+     @param offset the index of the word's first char
+     @param length the number of chars in the word
+     @return the id of the word, or -1 if it is not in the vocabulary
+     */
+    public int id(char[] chars, int offset, int length) {
+        return table[find(chars, offset, length, hash(chars, offset, length))] - 1;
+    }
+
+    /**
+     * @param id the id of a word
+     * @return the word with the given id
+     */
+    public String word(int id) {
+        return words.get(id);
+    }
+
+    /**
+     * @param word the word to look up
+     * @return true if the word is in the vocabulary
+     */
+    public boolean contains(String word) {
+        return id(word) >= 0;
+    }
+
+    /**
+     * @return the number of unique words
+     */
+    public int size() {
+        return words.size();
+    }
+
+
+    /**
+
+     Finds the slot holding a word, or the empty slot it would go in.
+     */
+    protected int find(String word, int hash) {
+        int slot = spread(hash) & mask;
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && words.get(id).equals(word)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    protected int find(char[] chars, int offset, int length, int hash) {
+        int slot = spread(hash) & mask;
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && matches(words.get(id), chars, offset, length)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    protected int insert(int slot, String word, int hash) {
+        int id = words.size();
+        words.add(word);
+        if (id == hashes.length) {
+            hashes = Arrays.copyOf(hashes, id * 2);
+        }
+        hashes[id] = hash;
+        table[slot] = id + 1;
+        if (words.size() > table.length * LOAD_FACTOR) {
+            rehash(table.length * 2);
+        }
+        return id;
+    }
+
+    protected void rehash(int capacity) {
+        table = new int[capacity];
+        mask = capacity - 1;
+        for (int id = 0; id < words.size(); id++) {
+            int slot = spread(hashes[id]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    protected static boolean matches(String word, char[] chars, int offset, int length) {
+        if (word.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (word.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the same hash String.hashCode gives for the chars
+     */
+    protected static int hash(char[] chars, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars[offset + i];
+        }
+        return hash;
+    }
+
+    protected static int spread(int hash) {
+        return (hash ^ (hash >>> 16)) * 0x9E3779B9;
+    }
+}
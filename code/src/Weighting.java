@@ -0,0 +1,56 @@
+/**
+ * The weighting schemes that can be applied to a word's co-occurrence counts before comparing it
+ * with other words. Each scheme rewrites a row of counts in place, before the row is normalized.
+ */
+public enum Weighting {
+    TF { // raw term frequency - the number of times each word occurs in the word context
+        @Override
+        public void apply(SparseVector counts, int wordId, ModelSnapshot model) {
+            // the counts are the weights
+        }
+    },
+    TFIDF { // term frequency times the inverse document frequency of the context word
+        @Override
+        public void apply(SparseVector counts, int wordId, ModelSnapshot model) {
+            counts.multiply(model.idfVector);
+        }
+    },
+    PPMI { // positive pointwise mutual information of the word and the context word
+        @Override
+        public void apply(SparseVector counts, int wordId, ModelSnapshot model) {
+            // log(P(w, c) / (P(w) P(c))) = log(count * total / (row sum * column sum)), clipped at 0
+            ModelSnapshot.Marginals marginals = model.marginals();
+            double scale = (double) marginals.total / marginals.rows[wordId];
+            for (int i = 0; i < counts.ids.length; i++) {
+                double pmi = Math.log(counts.values[i] * scale / marginals.columns[counts.ids[i]]);
+                counts.values[i] = Math.max(0, pmi);
+            }
+        }
+    };
+
+    /**
+
+     Weights a word's row of co-occurrence counts in place.
+     @param counts the word's co-occurrence counts, by context id
+     @param wordId the id of the word
+     @param model the snapshot the counts come from
+     */
+    public abstract void apply(SparseVector counts, int wordId, ModelSnapshot model);
+
+    /**
+
+     Parses the <weighting> column of the input file. "IDF" selects TF-IDF weighting and "PPMI" selects PPMI
+     weighting; anything else, including "TFIDF", falls back to the raw term frequencies, as it always has.
+     @param weighting the weighting string from the input file
+     @return the matching Weighting
+     */
+    public static Weighting fromString(String weighting) {
+        if (weighting.equals("IDF")) {
+            return TFIDF;
+        }
+        if (weighting.equals("PPMI")) {
+            return PPMI;
+        }
+        return TF;
+    }
+}
@@ -0,0 +1,215 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SimilarityTest {
+    protected static final String STOP_LIST = "../data/stoplist";
+    protected static final String SENTENCES = "../data/sentences2";
+
+
+    /**
+
+     PPMI clips negative associations to 0, so words that share a context with the target can still score
+     a cosine of 0. They must not take a place in the top k from a lower id that scores 0 too.
+     */
+    @Test
+    public void candidatesMatchFullScanUnderPpmi() throws Exception {
+        Similarity similarity = Similarity.fromCorpus(STOP_LIST, SENTENCES, Similarity.DEFAULT_VECTOR_CACHE_BYTES, null);
+        ModelSnapshot model = similarity.snapshot;
+        int words = model.vocabulary.size();
+        for (int k : new int[]{10, 100}) {
+            for (int id = 0; id < words; id++) {
+                Query query = new Query(model.vocabulary.word(id), Weighting.PPMI, Measure.COSINE, k);
+                SparseVector target = model.vectors.get(id, Weighting.PPMI);
+                TopK candidates = similarity.scoreCandidates(model, query, id, target);
+                TopK scanned = Similarity.scoreRange(model.vectors, new Query[]{query}, new int[]{id},
+                        new SparseVector[]{target}, 0, words)[0];
+
+                assertEquals(scanned.size(), candidates.size(), query.word());
+                double[] candidateScores = new double[k];
+                int[] candidateIds = new int[k];
+                double[] scannedScores = new double[k];
+                int[] scannedIds = new int[k];
+                candidates.drainSorted(candidateScores, candidateIds);
+                scanned.drainSorted(scannedScores, scannedIds);
+                assertArrayEquals(scannedIds, candidateIds, query.word());
+                assertArrayEquals(scannedScores, candidateScores, 1e-12, query.word());
+            }
+        }
+    }
+
+
+    /**
+
+     Scoring COSINE queries on a pool, one task per query and candidate lists split into ranges, gives the
+     same words as scoring them on the calling thread. The corpus is random enough that most words share
+     a context with more than CandidateTask.THRESHOLD others, so the lists are split.
+     */
+    @Test
+    public void cosineOnPoolMatchesSequential(@TempDir Path dir) throws Exception {
+        Path sentences = dir.resolve("sentences");
+        Random random = new Random(18);
+        try (BufferedWriter out = Files.newBufferedWriter(sentences)) {
+            for (int i = 0; i < 20_000; i++) {
+                for (int j = 0; j < 8; j++) {
+                    out.write(word(random.nextInt(3_000)) + " ");
+                }
+                out.newLine();
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Similarity sequential = Similarity.fromCorpus(STOP_LIST, sentences.toString(),
+                    Similarity.DEFAULT_VECTOR_CACHE_BYTES, null);
+            Similarity parallel = Similarity.fromCorpus(STOP_LIST, sentences.toString(),
+                    Similarity.DEFAULT_VECTOR_CACHE_BYTES, pool);
+            List<Query> queries = new ArrayList<>();
+            Vocabulary vocabulary = sequential.snapshot.vocabulary;
+            for (int id = 0; id < vocabulary.size(); id += 50) {
+                for (Weighting weighting : Weighting.values()) {
+                    queries.add(new Query(vocabulary.word(id), weighting, Measure.COSINE, 10));
+                }
+            }
+            assertSameNeighbors(queries, sequential.topK(queries), parallel.topK(queries));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+
+     Adding the second half of a corpus to a model of the first half gives the same model as building it
+     from the whole corpus at once.
+     */
+    @Test
+    public void addSentencesMatchesRebuild(@TempDir Path dir) throws Exception {
+        List<String> lines = Files.readAllLines(Path.of(SENTENCES));
+        Path first = dir.resolve("first");
+        Path second = dir.resolve("second");
+        Files.write(first, lines.subList(0, lines.size() / 2));
+        Files.write(second, lines.subList(lines.size() / 2, lines.size()));
+
+        Similarity rebuilt = Similarity.fromCorpus(STOP_LIST, SENTENCES, Similarity.DEFAULT_VECTOR_CACHE_BYTES, null);
+        Similarity incremental = Similarity.fromCorpus(STOP_LIST, first.toString(),
+                Similarity.DEFAULT_VECTOR_CACHE_BYTES, null);
+        incremental.addSentences(second.toString());
+        assertSameModel(rebuilt, incremental);
+    }
+
+    /**
+
+     Building out of core with a spill threshold small enough for well over SpillingIngester.MAX_FAN_IN runs,
+     so the runs are merged in more than one pass, gives the same model as counting in memory, and the
+     same model file as saving that model.
+     */
+    @Test
+    public void spilledBuildMatchesInMemory(@TempDir Path dir) throws Exception {
+        Path spilled = dir.resolve("spilled.model");
+        Path saved = dir.resolve("saved.model");
+        Similarity inMemory = Similarity.fromCorpus(STOP_LIST, SENTENCES, Similarity.DEFAULT_VECTOR_CACHE_BYTES, null);
+        inMemory.save(saved.toString());
+        Similarity onDisk = Similarity.fromCorpusOnDisk(STOP_LIST, SENTENCES, spilled.toString(),
+                100 * SpillingIngester.BYTES_PER_PAIR, Similarity.DEFAULT_VECTOR_CACHE_BYTES, null);
+        assertSameModel(inMemory, onDisk);
+        assertArrayEquals(Files.readAllBytes(saved), Files.readAllBytes(spilled));
+    }
+
+    /**
+
+     Counting a file in byte ranges on a pool gives the same model as counting it line by line. The file
+     is data/sentences2 over and over, large enough to be split into several ranges of at least
+     CorpusIngester.MIN_CHUNK_BYTES.
+     */
+    @Test
+    public void parallelIngestMatchesSequential(@TempDir Path dir) throws Exception {
+        Path sentences = dir.resolve("sentences");
+        byte[] corpus = Files.readAllBytes(Path.of(SENTENCES));
+        for (int i = 0; i < 60; i++) {
+            Files.write(sentences, corpus, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        assertTrue(Files.size(sentences) > 3 * CorpusIngester.MIN_CHUNK_BYTES);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Similarity sequential = Similarity.fromCorpus(STOP_LIST, sentences.toString(),
+                    Similarity.DEFAULT_VECTOR_CACHE_BYTES, null);
+            Similarity parallel = Similarity.fromCorpus(STOP_LIST, sentences.toString(),
+                    Similarity.DEFAULT_VECTOR_CACHE_BYTES, pool);
+            assertSameModel(sequential, parallel);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+
+     Saving a model and loading the file back gives the same model.
+     */
+    @Test
+    public void savedModelLoadsBack(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("saved.model");
+        Similarity built = Similarity.fromCorpus(STOP_LIST, SENTENCES, Similarity.DEFAULT_VECTOR_CACHE_BYTES, null);
+        built.save(file.toString());
+        Similarity loaded = Similarity.fromModelFile(file.toString(), Similarity.DEFAULT_VECTOR_CACHE_BYTES, null);
+        assertSameModel(built, loaded);
+    }
+
+    /**
+
+     Checks that two models have the same counts and give the same 20 most similar words for every 100th
+     word under every weighting and measure.
+     */
+    protected static void assertSameModel(Similarity expected, Similarity actual) {
+        ModelSnapshot model = expected.snapshot;
+        assertEquals(model.vocabulary.size(), actual.snapshot.vocabulary.size());
+        assertEquals(model.matrix.nnz(), actual.snapshot.matrix.nnz());
+        assertEquals(model.numSentences, actual.snapshot.numSentences);
+        assertEquals(model.wordCount, actual.snapshot.wordCount);
+
+        List<Query> queries = new ArrayList<>();
+        for (int id = 0; id < model.vocabulary.size(); id += 100) {
+            for (Weighting weighting : Weighting.values()) {
+                for (Measure measure : Measure.values()) {
+                    queries.add(new Query(model.vocabulary.word(id), weighting, measure, 20));
+                }
+            }
+        }
+        assertSameNeighbors(queries, expected.topK(queries), actual.topK(queries));
+    }
+
+    protected static void assertSameNeighbors(List<Query> queries, List<List<Neighbor>> expected,
+                                              List<List<Neighbor>> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int q = 0; q < expected.size(); q++) {
+            Query query = queries.get(q);
+            String what = query.word() + " " + query.weighting() + " " + query.measure();
+            assertEquals(expected.get(q).size(), actual.get(q).size(), what);
+            for (int i = 0; i < expected.get(q).size(); i++) {
+                assertEquals(expected.get(q).get(i).word(), actual.get(q).get(i).word(), what);
+                assertEquals(expected.get(q).get(i).score(), actual.get(q).get(i).score(), 1e-12, what);
+            }
+        }
+    }
+
+    /**
+     * @return a word of lower case letters for a number
+     */
+    protected static String word(int n) {
+        StringBuilder word = new StringBuilder("w");
+        for (; n > 0; n /= 26) {
+            word.append((char) ('a' + n % 26));
+        }
+        return word.toString();
+    }
+}